@@ -0,0 +1,8 @@
+package com.jisj.orm;
+
+/**
+ * SQL aggregate functions pushed down to the database
+ */
+public enum Aggregate {
+    COUNT, SUM, MIN, MAX, AVG
+}
@@ -0,0 +1,228 @@
+package com.jisj.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Reads a column into the entity field and binds the field as a statement parameter.
+ * Resolved once per column: primitive fields are accessed by typed handles without boxing,
+ * the other types go through the {@link TypeCodec} of the column java type
+ */
+public abstract class ColumnCodec {
+
+    public abstract void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException;
+
+    public abstract void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException;
+
+    /**
+     * @param getter field getter of the exact field type with the entity argument
+     * @param setter field setter of the exact field type with the entity argument
+     */
+    static ColumnCodec of(Class<?> targetType, MethodHandle getter, MethodHandle setter) {
+        Class<?> fieldType = getter.type().returnType();
+        if (fieldType == int.class) return new IntColumn(getter, setter);
+        if (fieldType == long.class) return new LongColumn(getter, setter);
+        if (fieldType == double.class) return new DoubleColumn(getter, setter);
+        if (fieldType == float.class) return new FloatColumn(getter, setter);
+        if (fieldType == boolean.class) return new BooleanColumn(getter, setter);
+        if (fieldType.isPrimitive())
+            throw new IllegalArgumentException("Unknown data type: " + fieldType);
+        return new ValueColumn(TypeCodecs.find(targetType), fieldType != targetType, getter, setter);
+    }
+
+    private static MethodHandle adapt(MethodHandle handle, Class<?> returnType, Class<?>... parameterTypes) {
+        return handle.asType(MethodType.methodType(returnType, parameterTypes));
+    }
+
+    private static SQLException rethrow(Throwable e) {
+        if (e instanceof RuntimeException runtime) throw runtime;
+        if (e instanceof Error error) throw error;
+        if (e instanceof SQLException sql) return sql;
+        throw new RuntimeException(e);
+    }
+
+    private static final class IntColumn extends ColumnCodec {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private IntColumn(MethodHandle getter, MethodHandle setter) {
+            this.getter = adapt(getter, int.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, int.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, resultSet.getInt(columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            try {
+                ps.setInt(parameterIndex, (int) getter.invokeExact(entity));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class LongColumn extends ColumnCodec {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private LongColumn(MethodHandle getter, MethodHandle setter) {
+            this.getter = adapt(getter, long.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, long.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, resultSet.getLong(columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            try {
+                ps.setLong(parameterIndex, (long) getter.invokeExact(entity));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class DoubleColumn extends ColumnCodec {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private DoubleColumn(MethodHandle getter, MethodHandle setter) {
+            this.getter = adapt(getter, double.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, double.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, resultSet.getDouble(columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            try {
+                ps.setDouble(parameterIndex, (double) getter.invokeExact(entity));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class FloatColumn extends ColumnCodec {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private FloatColumn(MethodHandle getter, MethodHandle setter) {
+            this.getter = adapt(getter, float.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, float.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, resultSet.getFloat(columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            try {
+                ps.setFloat(parameterIndex, (float) getter.invokeExact(entity));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    private static final class BooleanColumn extends ColumnCodec {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private BooleanColumn(MethodHandle getter, MethodHandle setter) {
+            this.getter = adapt(getter, boolean.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, boolean.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, resultSet.getBoolean(columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            try {
+                ps.setBoolean(parameterIndex, (boolean) getter.invokeExact(entity));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    /**
+     * Reference typed field. If the field is declared wider than the column type (generic ID, Object),
+     * the bound value is dispatched by its runtime class
+     */
+    private static final class ValueColumn extends ColumnCodec {
+        private final TypeCodec<Object> codec;
+        private final boolean dispatchByValue;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        @SuppressWarnings("unchecked")
+        private ValueColumn(TypeCodec<?> codec, boolean dispatchByValue, MethodHandle getter, MethodHandle setter) {
+            this.codec = (TypeCodec<Object>) codec;
+            this.dispatchByValue = dispatchByValue;
+            this.getter = adapt(getter, Object.class, Object.class);
+            this.setter = adapt(setter, void.class, Object.class, Object.class);
+        }
+
+        @Override
+        public void read(ResultSet resultSet, int columnIndex, Object entity) throws SQLException {
+            try {
+                setter.invokeExact(entity, codec.read(resultSet, columnIndex));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int parameterIndex, Object entity) throws SQLException {
+            Object value;
+            try {
+                value = (Object) getter.invokeExact(entity);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+            if (value == null) ps.setNull(parameterIndex, Types.NULL);
+            else if (dispatchByValue) TypeCodecs.forValue(value).bind(ps, parameterIndex, value);
+            else codec.bind(ps, parameterIndex, value);
+        }
+    }
+}
@@ -3,7 +3,9 @@ package com.jisj.orm;
 
 import javax.sql.DataSource;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -16,6 +18,28 @@ public interface DAO<T, ID> {
     int create(T entity) throws SQLException;
     int createAll(List<T> entityList) throws SQLException;
 
+    /**
+     * Inserts the entity list by batches in one transaction. Generated IDs are set to the entities
+     * @param entityList entities for insert
+     * @param batchSize count of rows in one JDBC batch
+     * @return created count
+     * @throws EntityBatchException with the failed entity, nothing of the list is inserted
+     */
+    int createAll(List<T> entityList, int batchSize) throws SQLException;
+
+    /**
+     * Inserts the entity or updates the record with the same ID by one statement (INSERT ... ON CONFLICT DO UPDATE)
+     * @return 1 if inserted or updated
+     */
+    int upsert(T entity) throws SQLException;
+
+    /**
+     * Upserts the entity list by batches in one transaction. Generated IDs are set to the entities without ID
+     * @return processed count
+     * @throws EntityBatchException with the failed entity, nothing of the list is written
+     */
+    int upsertAll(List<T> entityList) throws SQLException;
+
     /**
      * Read the entity by ID
      * @param id entity ID
@@ -23,13 +47,123 @@ public interface DAO<T, ID> {
      * @throws SQLException DB reading error
      */
     T read(ID id) throws SQLException;
+
+    /**
+     * Reads the entities by the set of IDs, large sets are read by several {@code IN} queries
+     * @return found entities by ID, missing IDs are absent
+     */
+    Map<ID, T> readAll(Collection<ID> ids) throws SQLException;
+
+    /**
+     * Same as {@link #readAll(Collection)}
+     * @return found entities in the order of the IDs, missing IDs are skipped
+     */
+    List<T> readAllInOrder(List<ID> ids) throws SQLException;
+
     Optional<T> readByEntity(T entity) throws SQLException;
+
+    /**
+     * Finds the stored record of the entity by one query over all keys with not null values:
+     * the ID, unique columns and unique constraints. The key of higher priority wins if records differ
+     * @return stored record or empty
+     * @see UniqueKeys
+     */
+    Optional<T> findByKeys(T entity) throws SQLException;
+
+    /**
+     * Bulk {@link #findByKeys(Object)}
+     * @return stored records in the order of the entities
+     */
+    List<Optional<T>> findAllByKeys(List<T> entities) throws SQLException;
+
+    /**
+     * Reads the entities joined to the owners through the join table of a ManyToMany column
+     * @param joinProfile profile of the join table, its embedded side references this entity
+     * @param ownerIds    IDs of the owners
+     * @return joined entities by the owner ID, in the order of the join records. Owners without records are absent
+     */
+    <O> Map<O, List<T>> findJoined(EntityProfile joinProfile, Collection<O> ownerIds) throws SQLException;
+
+    /**
+     * @return true if the entity with the ID exists
+     */
+    boolean exists(ID id) throws SQLException;
+
+    /**
+     * @return count of all rows of the entity table
+     */
+    long count() throws SQLException;
+
+    /**
+     * Named apart from {@link #exists(Object)}: a String ID would select the other overload
+     * @param whereClause WHERE clause without "WHERE" word, {@code null} or blank - any row
+     * @return true if any row matches
+     */
+    boolean existsWhere(String whereClause, Object... args) throws SQLException;
+
+    /**
+     * @param whereClause WHERE clause without "WHERE" word, {@code null} or blank - all rows
+     * @return count of the matched rows
+     */
+    long count(String whereClause, Object... args) throws SQLException;
+
+    /**
+     * Calculates the aggregate function over the column on the database side
+     * @param columnName column name of the entity table, {@code *} for COUNT
+     * @param resultType java type of the result, ex: Double for AVG
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all rows
+     * @return result or empty if there are no rows
+     * @throws IllegalArgumentException unknown column or result type
+     */
+    <R> Optional<R> aggregate(Aggregate function, String columnName, Class<R> resultType,
+                              String whereClause, Object... args) throws SQLException;
+
+    /**
+     * Calculates the aggregate function for every value of the group column
+     * @param groupColumn column name of the grouping
+     * @param columnName column name of the aggregation, {@code *} for COUNT
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all rows
+     * @return results by the group values ordered by the group values
+     * @throws IllegalArgumentException unknown column or result type
+     */
+    <K, R> Map<K, R> groupBy(String groupColumn, Class<K> keyType,
+                             Aggregate function, String columnName, Class<R> resultType,
+                             String whereClause, Object... args) throws SQLException;
+    /**
+     * Same as {@code stream(null, null)}
+     */
     Stream<T> readAll() throws SQLException;
+
+    /**
+     * Reads the entities lazily holding one connection until the stream is drained or closed.
+     * A stream which can be not consumed to the end (findFirst, limit, exceptions) should be closed:
+     * <pre>{@code
+     * try (Stream<T> stream = dao.stream("group=?", "id", group)) {
+     *     return stream.filter(...).findFirst();
+     * }
+     * }</pre>
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all rows
+     * @param orderBy ORDER BY clause without "ORDER BY" words or {@code null}
+     * @param args values of the '?' parameters of the WHERE clause
+     */
+    Stream<T> stream(String whereClause, String orderBy, Object... args) throws SQLException;
     /**
      *
      * @return updated count
      */
     int update(T entity) throws SQLException;
+
+    /**
+     * Updates the entities by ID with JDBC batches in one transaction
+     * @return updated count
+     */
+    int updateAll(List<T> entityList) throws SQLException;
+
+    /**
+     * Executes the statement once per parameter row with JDBC batches in one transaction
+     * @return updated count
+     */
+    int updateBatch(String sqlStatement, List<Object[]> parameterRows) throws SQLException;
     int updateField(ID id, String fieldName, Object value) throws SQLException;
 
     /**
@@ -49,6 +183,35 @@ public interface DAO<T, ID> {
     Optional<T> findByUnique(String[] columnNames, Object... values) throws SQLException;
     List<T> findAll(String whereClause, Object...args) throws SQLException;
 
+    /**
+     * Reads the page of entities ordered by the key columns after the key values (keyset pagination).
+     * The ID column is added to the key columns if it is absent, so the order is unique.
+     * The key columns should not contain NULL
+     * @param keyColumns column names of the order
+     * @param afterKey key values of the last entity of the previous page ({@link Page#nextKey()}) or {@code null} for the first page
+     * @param size max count of entities of the page
+     * @throws IllegalArgumentException unknown column, wrong count of the key values
+     */
+    Page<T> page(String[] keyColumns, Object[] afterKey, int size) throws SQLException;
+
+    /**
+     * Selects only the columns of the projection type and maps them into it
+     * @param type record or class with no-args constructor, its components/fields are matched with the entity fields or columns by name
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all rows
+     * @param args values of the '?' parameters of the WHERE clause
+     * @throws IllegalArgumentException the type does not match the entity
+     * @see Projection#of(EntityProfile, Class)
+     */
+    <P> List<P> project(Class<P> type, String whereClause, Object... args) throws SQLException;
+
+    /**
+     * Selects only the specified fields into new entities, the other fields are left default
+     * @param fieldNames entity field names
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all rows
+     * @param args values of the '?' parameters of the WHERE clause
+     */
+    List<T> findPartial(String[] fieldNames, String whereClause, Object... args) throws SQLException;
+
     /**
      * Performs random select SQL query to DB. In SELECT clause should be pointed all fields of the queried entity
      * @param sqlQuery plane SQL with params
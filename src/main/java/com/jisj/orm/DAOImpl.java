@@ -3,12 +3,15 @@ package com.jisj.orm;
 
 import com.jisj.orm.function.ThrowingConsumer;
 import com.jisj.orm.function.ThrowingFunction;
+import com.jisj.orm.function.ThrowingSupplier;
 import org.sqlite.SQLiteException;
 
 import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -20,9 +23,22 @@ import static com.jisj.orm.StatementBuilder.buildReadByEntityStatement;
 public class DAOImpl<T, ID> implements DAO<T, ID> {
     protected static Logger log = Logger.getLogger(DAOImpl.class.getName());
     public static final int UNDEF_INT = -1;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /**
+     * Max count of the values in one {@code IN} list, below the variable limit of the older SQLite builds (999)
+     */
+    public static final int MAX_IN_LIST_SIZE = 900;
     protected final DataSource dataSource;
     protected final EntityProfile profile;
     private boolean formattedSQLStatement = false;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long slowStatementThreshold = 0;
+    private int fetchSize = 0;
+    //compiled projections by projection class or by the list of the entity fields
+    private final Map<Object, Projection<?>> projections = new ConcurrentHashMap<>();
+    private volatile UniqueKeys uniqueKeys;
+    private volatile EntityCache cache;
+    private volatile QueryCache queryCache;
 
     public DAOImpl(DataSource dataSource, Class<? extends T> entityClass) {
         this.dataSource = dataSource;
@@ -38,10 +54,141 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
         return dataSource.getConnection();
     }
 
+    /**
+     * @return read-only connection of the {@link DBDataSource} pool or the connection of the data source
+     */
+    protected Connection getReadConnection() throws SQLException {
+        return dataSource instanceof DBDataSource db ? db.getReadConnection() : getConnection();
+    }
+
     public void setFormattedSQLStatement(boolean formattedSQLStatement) {
         this.formattedSQLStatement = formattedSQLStatement;
     }
 
+    /**
+     * Sets count of rows sent by one JDBC batch in {@link #createAll(List)}
+     * @param batchSize rows count. Default: {@link #DEFAULT_BATCH_SIZE}
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size should be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the count of rows fetched from the database at once by the streaming reads
+     * @param fetchSize rows count, 0 - the driver default
+     * @see #stream(String, String, Object...)
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 0)
+            throw new IllegalArgumentException("Fetch size should not be negative: " + fetchSize);
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Statements executed longer than the threshold are logged at WARNING level with their parameters,
+     * regardless of the FINE logging
+     * @param millis threshold in milliseconds, 0 - disabled (default)
+     */
+    public void setSlowStatementThreshold(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Threshold should not be negative: " + millis);
+        this.slowStatementThreshold = millis;
+    }
+
+    public long getSlowStatementThreshold() {
+        return slowStatementThreshold;
+    }
+
+    /**
+     * Sets the second-level cache of the reads by ID. The cache is not used inside a transaction of {@link DBDataSource},
+     * the writes of this DAO invalidate the entries. Writes by other statements on the table are not seen by the cache
+     * @param cache cache or {@code null} to disable
+     */
+    public void setCache(EntityCache cache) {
+        this.cache = cache;
+    }
+
+    public EntityCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the cache of the {@link #findAll(String, Object...)} and {@link #query(String, Object...)} results,
+     * usually shared by the DAO of all tables. The cache is not used inside a transaction of {@link DBDataSource},
+     * the writes of this DAO make stale the results depending on its table
+     * @param queryCache cache or {@code null} to disable
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        if (queryCache != null) queryCache.register(profile);
+        this.queryCache = queryCache;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    private Optional<Transaction> currentTransaction() {
+        return dataSource instanceof DBDataSource db ? db.getTransaction() : Optional.empty();
+    }
+
+    /**
+     * @return cache usable by the current thread or {@code null}
+     */
+    private EntityCache readableCache() {
+        EntityCache current = cache;
+        return current == null || currentTransaction().isPresent() ? null : current;
+    }
+
+    private QueryCache readableQueryCache() {
+        QueryCache current = queryCache;
+        return current == null || currentTransaction().isPresent() ? null : current;
+    }
+
+    /**
+     * Drops the cached entries of the written IDs and the cached query results of the table
+     */
+    private void invalidate(Collection<?> ids) {
+        EntityCache current = cache;
+        QueryCache queries = queryCache;
+        afterWrite(current == null && queries == null ? null : () -> {
+            if (current != null) ids.forEach(current::invalidate);
+            if (queries != null) queries.invalidate(profile.getTableName());
+        });
+    }
+
+    private void invalidateAll() {
+        EntityCache current = cache;
+        QueryCache queries = queryCache;
+        afterWrite(current == null && queries == null ? null : () -> {
+            if (current != null) current.invalidateAll();
+            if (queries != null) queries.invalidate(profile.getTableName());
+        });
+    }
+
+    /**
+     * Performs the invalidation. Inside a transaction it is performed again when the transaction completes,
+     * since the concurrent readers may cache the committed values until then
+     */
+    private void afterWrite(Runnable invalidation) {
+        if (invalidation == null) return;
+        invalidation.run();
+        currentTransaction().ifPresent(tx -> tx.afterCompletion(invalidation));
+    }
+
+    private List<Object> idsOf(List<T> entities) {
+        return entities.stream().map(profile::getIdValue).filter(Objects::nonNull).toList();
+    }
+
     /**
      * Try-resource wrapper for Connection
      */
@@ -51,6 +198,16 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
         }
     }
 
+    /**
+     * Try-resource wrapper for the read connection, the function should not write
+     * @see #getReadConnection()
+     */
+    public <R> R withReadConnection(final ThrowingFunction<Connection, R, SQLException> function) throws SQLException {
+        try (var connection = getReadConnection()) {
+            return function.apply(connection);
+        }
+    }
+
     @Override
     public DataSource getDataSource() {
         return dataSource;
@@ -67,10 +224,18 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
         String sqlStatement = sql;
         try (var ps = connection.prepareStatement(sql)) {
             paramMapper.accept(ps);
-            sqlStatement = "\n" + formatSQLStatement(ps.toString());
-            log.fine(sqlStatement);
-            ResultSet rs = ps.executeQuery();
-            return resultMapper.apply(new RSWrapper(rs));
+            long start = System.nanoTime();
+            ResultSet rs;
+            try {
+                rs = ps.executeQuery();
+            } catch (SQLException e) {
+                sqlStatement = describe(ps);
+                throw e;
+            }
+            //SQLite steps the statement while the rows are read: the time includes the mapping of the result
+            R result = resultMapper.apply(new RSWrapper(rs));
+            logStatement(ps, System.nanoTime() - start, "");
+            return result;
         } catch (SQLException e) {
             switch (((SQLiteException) e).getResultCode()) {
                 case SQLITE_ERROR -> throw new IllegalStateException(e.getMessage() + "\n" + sqlStatement, e);
@@ -79,27 +244,44 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
         }
     }
 
+    /**
+     * Performs the update statement. The statement may write any rows of the table:
+     * the cached entities and query results of the table are dropped
+     */
     public <R> R doUpdate(Connection connection, String sql,
                           final ThrowingConsumer<PreparedStatement, SQLException> paramMapper,
                           final ThrowingFunction<RSWrapper, R, SQLException> resultMapper) throws SQLException {
-        String sqlStatement = sql;
-        log.fine("DAO class: " + this);
-        log.fine("Built statement: " + sql);
+        R result = executeUpdate(connection, sql, paramMapper, resultMapper);
+        invalidateAll();
+        return result;
+    }
+
+    /**
+     * Performs the update statement, the caller invalidates the caches
+     */
+    private <R> R executeUpdate(Connection connection, String sql,
+                                final ThrowingConsumer<PreparedStatement, SQLException> paramMapper,
+                                final ThrowingFunction<RSWrapper, R, SQLException> resultMapper) throws SQLException {
         try (var ps = connection.prepareStatement(sql)) {
             paramMapper.accept(ps);
-            sqlStatement = "\n" + formatSQLStatement(ps.toString());
-            int count = ps.executeUpdate();
-            RSWrapper results = new RSWrapper(ps.getGeneratedKeys(), count);
-            log.fine(sqlStatement + (results.getGeneratedKeys().isEmpty() ? "" : " -> ID=" + results.getGeneratedKeys()));
+            long start = System.nanoTime();
+            RSWrapper results;
+            try {
+                int count = ps.executeUpdate();
+                results = new RSWrapper(ps.getGeneratedKeys(), count);
+            } catch (SQLException e) {
+                log.fine(() -> describe(ps));
+                throw e;
+            }
+            logStatement(ps, System.nanoTime() - start, results.getGeneratedKeys().isEmpty() ? "" : " -> ID=" + results.getGeneratedKeys());
             return resultMapper.apply(results);
         } catch (SQLException e) {
-            log.fine(sqlStatement);
             throw new SQLException(e);
         }
     }
 
     /**
-     * Performs the update query
+     * Performs the update query, the cached entities and query results of the table are dropped
      * @param connection current connection
      * @param sql SQL query
      * @throws SQLException any SQL errors
@@ -109,56 +291,277 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
             throw new IllegalArgumentException("SQL statement is empty");
 
         try (var ps = connection.prepareStatement(sql)) {
-            String sqlStatement = "\n" + formatSQLStatement(ps.toString());
+            long start = System.nanoTime();
             ps.executeUpdate();
-            log.fine(sqlStatement);
+            logStatement(ps, System.nanoTime() - start, "");
         }
+        invalidateAll();
+    }
+
+    /**
+     * Logs the executed statement. The statement text is built only if it is going to be logged
+     * @param nanos execution time
+     */
+    private void logStatement(PreparedStatement ps, long nanos, String suffix) {
+        long millis = nanos / 1_000_000;
+        if (slowStatementThreshold > 0 && millis >= slowStatementThreshold && log.isLoggable(Level.WARNING))
+            log.warning("Slow statement " + millis + " ms:" + describe(ps) + suffix);
+        else log.fine(() -> describe(ps) + suffix);
+    }
+
+    private String describe(PreparedStatement ps) {
+        return "\n" + formatSQLStatement(ps.toString());
     }
 
     private String formatSQLStatement(String sql) {
-        if (formattedSQLStatement) return sql.replaceAll("\n \n ", "\n");
-        else return sql.replaceAll("\n", " ");
+        if (formattedSQLStatement) return sql.replace("\n \n ", "\n");
+        else return sql.replace('\n', ' ');
     }
 
     @Override
     public int create(T entity) throws SQLException {
-        return withConnection(connection -> doUpdate(connection, getProfile().getStatements().get("INSERT"), ps ->
-                        setPreparedStatement(ps, profile.getInsertablePrimitiveColumns().toList(), entity),
+        int count = withConnection(connection -> executeUpdate(connection, getProfile().getStatements().insert(), ps ->
+                        setPreparedStatement(ps, profile.getInsertablePrimitiveColumnList(), entity),
                 r -> {
-                    r.getId().ifPresent(id -> profile.setIdValue(entity, id));
+                    if (!profile.isWithoutRowId()) r.getId().ifPresent(id -> profile.setIdValue(entity, id));
                     return r.updateCount;
                 })
         );
+        invalidate(idsOf(List.of(entity)));
+        return count;
     }
 
     @Override
     public int createAll(List<T> entityList) throws SQLException {
-        return withConnection(connection ->
-                {
-                    for (T entity : entityList) {
-                        doUpdate(connection, getProfile().getStatements().get("INSERT"), ps ->
-                                        setPreparedStatement(ps, profile.getInsertablePrimitiveColumns().toList(), entity),
-                                r -> {
-                                    r.getId().ifPresent(id -> profile.setIdValue(entity, id));
-                                    return r.updateCount;
-                                });
+        return createAll(entityList, batchSize);
+    }
+
+    /**
+     * Inserts the entities with one prepared statement inside one transaction.
+     * Entities with ID are sent by JDBC batches, entities without ID are inserted one by one for the generated key.
+     * On any error the whole list is rolled back and the generated IDs are reset
+     * @throws EntityBatchException with the failed entity
+     */
+    @Override
+    public int createAll(List<T> entityList, int batchSize) throws SQLException {
+        return writeAll(getProfile().getStatements().insert(), entityList, batchSize);
+    }
+
+    /**
+     * Inserts the entity or updates the stored record with the same ID by one statement.
+     * The generated ID is set only if the entity ID was null
+     * @return 1 if the record was inserted or updated
+     */
+    @Override
+    public int upsert(T entity) throws SQLException {
+        final boolean generated = !profile.isWithoutRowId() && profile.getIdValue(entity) == null;
+        int count = withConnection(connection -> executeUpdate(connection, getProfile().getStatements().upsert(), ps ->
+                        setPreparedStatement(ps, profile.getInsertablePrimitiveColumnList(), entity),
+                r -> {
+                    if (generated) r.getId().ifPresent(id -> profile.setIdValue(entity, id));
+                    return r.updateCount;
+                })
+        );
+        invalidate(idsOf(List.of(entity)));
+        return count;
+    }
+
+    /**
+     * Upserts the entities by batches inside one transaction, see {@link #createAll(List, int)}
+     * @throws EntityBatchException with the failed entity
+     */
+    @Override
+    public int upsertAll(List<T> entityList) throws SQLException {
+        return writeAll(getProfile().getStatements().upsert(), entityList, batchSize);
+    }
+
+    private int writeAll(final String sql, List<T> entityList, int batchSize) throws SQLException {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size should be positive: " + batchSize);
+        final List<EntityProfile.Column> columns = profile.getInsertablePrimitiveColumnList();
+        final List<T> generated = new ArrayList<>();
+        try {
+            int count = withConnection(connection -> inTransaction(connection, () -> {
+                try (var ps = connection.prepareStatement(sql)) {
+                    for (int from = 0; from < entityList.size(); from += batchSize) {
+                        List<T> chunk = entityList.subList(from, Math.min(from + batchSize, entityList.size()));
+                        if (!profile.isWithoutRowId() && chunk.stream().anyMatch(entity -> profile.getIdValue(entity) == null))
+                            executeEach(ps, columns, chunk, from, generated);
+                        else executeBatch(connection, ps, columns, chunk, from);
                     }
-                    return entityList.size();
                 }
-        );
+                log.fine(() -> "Batch write: " + entityList.size() + " -> " + profile.getTableName());
+                return entityList.size();
+            }));
+            invalidate(idsOf(entityList));
+            return count;
+        } catch (SQLException | RuntimeException e) {
+            generated.forEach(entity -> profile.setIdValue(entity, null));
+            throw e;
+        }
+    }
+
+    private void executeEach(PreparedStatement ps, List<EntityProfile.Column> columns, List<T> chunk,
+                             int offset, List<T> generated) throws EntityBatchException {
+        for (int i = 0; i < chunk.size(); i++) {
+            T entity = chunk.get(i);
+            try {
+                setPreparedStatement(ps, columns, entity);
+                ps.executeUpdate();
+                if (!profile.isWithoutRowId() && profile.getIdValue(entity) == null) {
+                    Optional<Object> id = new RSWrapper(ps.getGeneratedKeys(), 1).getId();
+                    if (id.isPresent()) {
+                        profile.setIdValue(entity, id.get());
+                        generated.add(entity);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new EntityBatchException(e, entity, offset + i);
+            }
+        }
+    }
+
+    private void executeBatch(Connection connection, PreparedStatement ps, List<EntityProfile.Column> columns,
+                              List<T> chunk, int offset) throws SQLException {
+        for (T entity : chunk) {
+            setPreparedStatement(ps, columns, entity);
+            ps.addBatch();
+        }
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            ps.executeBatch();
+            connection.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            //the driver does not report the failed row: replay the chunk row by row to find it
+            ps.clearBatch();
+            connection.rollback(savepoint);
+            executeEach(ps, columns, chunk, offset, new ArrayList<>());
+            throw new EntityBatchException(e, null, offset);
+        }
+    }
+
+    /**
+     * Performs the work as one unit: commits on success and rolls back on any error.
+     * If the connection already has an open transaction the work is wrapped by a savepoint
+     */
+    protected <R> R inTransaction(Connection connection, ThrowingSupplier<R, SQLException> work) throws SQLException {
+        if (!connection.getAutoCommit()) {
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                R result = work.get();
+                connection.releaseSavepoint(savepoint);
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback(savepoint);
+                throw e;
+            }
+        }
+        connection.setAutoCommit(false);
+        try {
+            R result = work.get();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public T read(ID id) throws SQLException {
-        return withConnection(connection -> read(connection, id));
+        assertRowId();
+        EntityCache current = readableCache();
+        if (current == null) return withReadConnection(connection -> read(connection, id));
+        T cached = (T) current.get(id);
+        if (cached != null) return cached;
+        long stamp = current.stamp();
+        T found = withReadConnection(connection -> read(connection, id));
+        if (found != null) current.put(found, stamp);
+        return found;
+    }
+
+    /**
+     * Large sets are split into chunks of {@link #MAX_IN_LIST_SIZE} IDs read by one connection
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<ID, T> readAll(Collection<ID> ids) throws SQLException {
+        assertRowId();
+        Map<ID, T> result = new HashMap<>();
+        EntityCache current = readableCache();
+        Collection<ID> missing = ids;
+        long stamp = 0;
+        if (current != null) {
+            missing = new ArrayList<>();
+            for (ID id : ids) {
+                T cached = (T) current.get(id);
+                if (cached != null) result.put(id, cached);
+                else missing.add(id);
+            }
+            stamp = current.stamp();
+        }
+        final long readStamp = stamp;
+        readInChunks(profile.getStatements().selectAll(), profile.getIdColumn().getColumnName(), missing, null,
+                rsWrapper -> {
+                    T entity = toEntity(rsWrapper);
+                    result.put((ID) profile.getIdValue(entity), entity);
+                    if (current != null) current.put(entity, readStamp);
+                });
+        return result;
+    }
+
+    @Override
+    public List<T> readAllInOrder(List<ID> ids) throws SQLException {
+        Map<ID, T> found = readAll(ids);
+        return ids.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /**
+     * Runs {@code select WHERE column IN (...)} for the distinct values split into chunks of {@link #MAX_IN_LIST_SIZE}.
+     * All the full chunks share one statement text
+     * @param select    statement without WHERE
+     * @param orderBy   ORDER BY clause of a chunk or {@code null}
+     * @param rowReader called for each row
+     */
+    private void readInChunks(String select, String column, Collection<?> values, String orderBy,
+                              ThrowingConsumer<RSWrapper, SQLException> rowReader) throws SQLException {
+        List<?> distinct = List.copyOf(new LinkedHashSet<>(values));
+        if (distinct.isEmpty()) return;
+        withReadConnection(connection -> {
+            for (int from = 0; from < distinct.size(); from += MAX_IN_LIST_SIZE) {
+                List<?> chunk = distinct.subList(from, Math.min(from + MAX_IN_LIST_SIZE, distinct.size()));
+                doQuery(connection, select + "\nWHERE " + column + " IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")" +
+                                (orderBy == null ? "" : "\nORDER BY " + orderBy),
+                        ps -> {
+                            for (int i = 0; i < chunk.size(); i++)
+                                setPreparedStatementValue(ps, i + 1, chunk.get(i));
+                        },
+                        rsWrapper -> {
+                            while (rsWrapper.getResultSet().next()) rowReader.accept(rsWrapper);
+                            return null;
+                        });
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the records have no ID, the table is created WITHOUT ROWID
+     */
+    private void assertRowId() {
+        if (profile.isWithoutRowId())
+            throw new UnsupportedOperationException("The records of " + profile.getTableName() +
+                    " have no ID, the table is created WITHOUT ROWID");
     }
 
     private T read(Connection connection, ID id) {
-        final String statement = """
-                SELECT * FROM %s
-                WHERE %s=?
-                """.formatted(profile.getTableName(), profile.getIdColumn().getColumnName());
-        return read(connection, statement, id);
+        return read(connection, profile.getStatements().readById(), id);
     }
 
     protected T read(Connection connection, String sqlStatement, ID id) {
@@ -170,18 +573,110 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
         );
     }
 
+    @Override
+    public boolean exists(ID id) throws SQLException {
+        assertRowId();
+        return queryValue(profile.getStatements().existsById(), TypeCodecs.find(Boolean.class), id).orElse(false);
+    }
+
+    @Override
+    public long count() throws SQLException {
+        return queryValue(profile.getStatements().count(), TypeCodecs.find(Long.class)).orElse(0L);
+    }
+
+    @Override
+    public boolean existsWhere(String whereClause, Object... args) throws SQLException {
+        return queryValue(StatementBuilder.buildExistsStatement(profile, whereClause), TypeCodecs.find(Boolean.class), args)
+                .orElse(false);
+    }
+
+    @Override
+    public long count(String whereClause, Object... args) throws SQLException {
+        return queryValue(profile.getStatements().countWhere(whereClause), TypeCodecs.find(Long.class), args).orElse(0L);
+    }
+
+    @Override
+    public <R> Optional<R> aggregate(Aggregate function, String columnName, Class<R> resultType,
+                                     String whereClause, Object... args) throws SQLException {
+        String statement = StatementBuilder.buildAggregateStatement(profile, function,
+                aggregateColumn(function, columnName), whereClause);
+        return queryValue(statement, TypeCodecs.find(resultType), args);
+    }
+
+    @Override
+    public <K, R> Map<K, R> groupBy(String groupColumn, Class<K> keyType,
+                                    Aggregate function, String columnName, Class<R> resultType,
+                                    String whereClause, Object... args) throws SQLException {
+        String statement = StatementBuilder.buildGroupByStatement(profile, aggregateColumn(null, groupColumn),
+                function, aggregateColumn(function, columnName), whereClause);
+        TypeCodec<K> keyCodec = TypeCodecs.find(keyType);
+        TypeCodec<R> valueCodec = TypeCodecs.find(resultType);
+        return withReadConnection(connection ->
+                doQuery(connection, statement,
+                        ps -> {
+                            for (int i = 0; i < args.length; i++)
+                                setPreparedStatementValue(ps, i + 1, args[i]);
+                        },
+                        rsWrapper -> {
+                            ResultSet rs = rsWrapper.getResultSet();
+                            Map<K, R> result = new LinkedHashMap<>();
+                            while (rs.next()) {
+                                K key = keyCodec.read(rs, 1);
+                                if (rs.wasNull()) key = null;
+                                R value = valueCodec.read(rs, 2);
+                                result.put(key, rs.wasNull() ? null : value);
+                            }
+                            return result;
+                        }
+                )
+        );
+    }
+
+    /**
+     * @return validated column name, {@code *} is allowed for COUNT
+     */
+    private String aggregateColumn(Aggregate function, String columnName) {
+        if (function == Aggregate.COUNT && "*".equals(columnName)) return columnName;
+        EntityProfile.Column column = profile.getColumn(columnName);
+        if (column == null || !column.isPrimitive())
+            throw new IllegalArgumentException("No such column: " + columnName);
+        return column.getColumnName();
+    }
+
+    /**
+     * Reads the single value of the first row
+     * @return empty if there are no rows or the value is NULL
+     */
+    private <R> Optional<R> queryValue(String statement, TypeCodec<R> codec, Object... args) throws SQLException {
+        return withReadConnection(connection ->
+                doQuery(connection, statement,
+                        ps -> {
+                            for (int i = 0; i < args.length; i++)
+                                setPreparedStatementValue(ps, i + 1, args[i]);
+                        },
+                        rsWrapper -> {
+                            ResultSet rs = rsWrapper.getResultSet();
+                            if (!rs.next()) return Optional.<R>empty();
+                            R value = codec.read(rs, 1);
+                            return rs.wasNull() ? Optional.<R>empty() : Optional.ofNullable(value);
+                        }
+                )
+        );
+    }
+
     @Override
     public Optional<T> readByEntity(T entity) throws SQLException {
-        final String statement = getProfile().getStatement("READ_BY_ENTITY") == null ?
-                buildReadByEntityStatement(getProfile(), entity)
-                : getProfile().getStatement("READ_BY_ENTITY");
-        return withConnection(connection ->
+        assertRowId();
+        final String statement = buildReadByEntityStatement(getProfile(), entity);
+        return withReadConnection(connection ->
                 doQuery(connection, statement,
                         ps -> {
                             int i = 1;
                             for (var value : getProfile().getCreateTableColumns()
                                     .filter(column -> !column.isId())
-                                    .map(column -> column.getValue(entity)).toList()) {
+                                    .map(column -> column.getValue(entity))
+                                    .filter(Objects::nonNull) //bound as IS NULL
+                                    .toList()) {
                                 setPreparedStatementValue(ps, i, value);
                                 i++;
                             }
@@ -195,106 +690,194 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
 
     @Override
     public Stream<T> readAll() throws SQLException {
-        final String statement = """
-                SELECT * FROM %s
-                """.formatted(profile.getTableName());
+        return stream(null, null);
+    }
 
-        Connection connection = getConnection();
+    /**
+     * Rows are read from the open result set while the stream is consumed. The connection is released
+     * when the stream is drained, fails or is closed. The statement is logged then, with the time spent
+     * reading the rows, the time of the stream consumer is not counted
+     */
+    @Override
+    public Stream<T> stream(String whereClause, String orderBy, Object... args) throws SQLException {
+        String statement = whereClause == null || whereClause.isBlank() ?
+                profile.getStatements().selectAll()
+                : profile.getStatements().selectWhere(whereClause);
+        if (orderBy != null && !orderBy.isBlank()) statement += "\nORDER BY " + orderBy;
 
-        RSWrapper rw;
-        PreparedStatement ps;
+        final Connection connection = getReadConnection();
+        final List<AutoCloseable> resources = new ArrayList<>(List.of(connection));
+        final Runnable release = () -> closeAll(resources);
         try {
-            ps = connection.prepareStatement(statement);
+            PreparedStatement ps = connection.prepareStatement(statement);
+            resources.add(0, ps);
+            if (fetchSize > 0) ps.setFetchSize(fetchSize);
+            for (int i = 0; i < args.length; i++)
+                setPreparedStatementValue(ps, i + 1, args[i]);
+            long start = System.nanoTime();
             ResultSet rs = ps.executeQuery();
-            rw = new RSWrapper(rs);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-
-        return StreamSupport.stream(new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED) {
-            @Override
-            public boolean tryAdvance(Consumer<? super T> action) {
-                try {
-                    if (rw.getResultSet() == null) {
-                        ps.close();
-                        connection.close();
-                        return false;
-                    }
-                    if (!rw.getResultSet().next()) {
-                        rw.getResultSet().close();
-                        ps.close();
-                        connection.close();
-                        return false;
+            resources.add(0, rs);
+            final long[] readNanos = {System.nanoTime() - start};
+            resources.add(0, () -> logStatement(ps, readNanos[0], ""));
+            RSWrapper rw = new RSWrapper(rs);
+            return StreamSupport.stream(new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+                @Override
+                public boolean tryAdvance(Consumer<? super T> action) {
+                    try {
+                        long from = System.nanoTime();
+                        boolean next = rs.next();
+                        T entity = next ? toEntity(rw) : null;
+                        readNanos[0] += System.nanoTime() - from;
+                        if (!next) {
+                            release.run();
+                            return false;
+                        }
+                        action.accept(entity);
+                        return true;
+                    } catch (SQLException e) {
+                        release.run();
+                        throw new RuntimeException(e);
+                    } catch (RuntimeException | Error e) {
+                        release.run();
+                        throw e;
                     }
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
                 }
-                action.accept(toEntity(rw));
-                return true;
+            }, false).onClose(release);
+        } catch (SQLException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the resources once in the list order. Errors are logged, the resources are closed anyway
+     */
+    private static void closeAll(List<AutoCloseable> resources) {
+        for (AutoCloseable resource : resources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                log.warning("Close error of " + resource.getClass().getSimpleName() + ": " + e.getMessage());
             }
-        }, false);
+        }
+        resources.clear();
     }
 
     @SuppressWarnings("unchecked")
     private T toEntity(RSWrapper rsWrap) {
         Object entity = profile.newEntityInstance();
-        int columnIndex = 1;
-        for (var column : profile.getCreateTableColumns().toList()) {
-            column.setValue(entity, rsWrap.getValue(column.getTargetJavaType(), columnIndex));
-            columnIndex++;
+        List<EntityProfile.Column> columns = profile.getCreateTableColumnList();
+        try {
+            for (int i = 0; i < columns.size(); i++)
+                columns.get(i).getCodec().read(rsWrap.getResultSet(), i + 1, entity);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
         return (T) entity;
     }
 
     @Override
     public int update(T entity) throws SQLException {
-        return withConnection(connection -> doUpdate(connection, getProfile().getStatements().get("UPDATE_BY_ID"), ps -> {
-                    setPreparedStatement(ps, profile.getUpdatablePrimitiveColumns().toList(), entity);
+        assertRowId();
+        int count = withConnection(connection -> executeUpdate(connection, getProfile().getStatements().updateById(), ps -> {
+                    setPreparedStatement(ps, profile.getUpdatablePrimitiveColumnList(), entity);
                     setPreparedStatementValue(ps, ps.getParameterMetaData().getParameterCount(), profile.getIdValue(entity));
                 },
                 r -> r.updateCount));
+        invalidate(idsOf(List.of(entity)));
+        return count;
+    }
+
+    @Override
+    public int updateAll(List<T> entityList) throws SQLException {
+        assertRowId();
+        final List<EntityProfile.Column> columns = profile.getUpdatablePrimitiveColumnList();
+        int count = updateInBatches(profile.getStatements().updateById(), entityList, (ps, entity) -> {
+            setPreparedStatement(ps, columns, entity);
+            setPreparedStatementValue(ps, columns.size() + 1, profile.getIdValue(entity));
+        });
+        invalidate(idsOf(entityList));
+        return count;
+    }
+
+    @Override
+    public int updateBatch(String sqlStatement, List<Object[]> parameterRows) throws SQLException {
+        int count = updateInBatches(sqlStatement, parameterRows, (ps, parameters) -> {
+            for (int i = 0; i < parameters.length; i++)
+                setPreparedStatementValue(ps, i + 1, parameters[i]);
+        });
+        invalidateAll();
+        return count;
+    }
+
+    @FunctionalInterface
+    private interface RowBinder<R> {
+        void bind(PreparedStatement ps, R row) throws SQLException;
+    }
+
+    private <R> int updateInBatches(String sql, List<R> rows, RowBinder<R> binder) throws SQLException {
+        if (rows.isEmpty()) return 0;
+        return withConnection(connection -> inTransaction(connection, () -> {
+            int updated = 0;
+            try (var ps = connection.prepareStatement(sql)) {
+                for (int from = 0; from < rows.size(); from += batchSize) {
+                    for (R row : rows.subList(from, Math.min(from + batchSize, rows.size()))) {
+                        binder.bind(ps, row);
+                        ps.addBatch();
+                    }
+                    for (int count : ps.executeBatch())
+                        if (count > 0) updated += count;
+                }
+            }
+            final int total = updated;
+            log.fine(() -> "Batch update: " + rows.size() + " rows, " + total + " updated -> " + sql);
+            return updated;
+        }));
     }
 
     @Override
     public int updateField(ID id, String fieldName, Object value) throws SQLException {
-        final String STATEMENT = """
-                UPDATE %s
-                    SET %s = ?
-                WHERE id = ?
-                """.formatted(profile.getTableName(), getProfile().getColumnByField(fieldName).getColumnName());
-        return withConnection(connection -> doUpdate(connection, STATEMENT,
+        assertRowId();
+        final String STATEMENT = profile.getStatements().updateFieldById(fieldName);
+        int count = withConnection(connection -> executeUpdate(connection, STATEMENT,
                 ps -> {
                     setPreparedStatementValue(ps, 1, value);
                     setPreparedStatementValue(ps, 2, id);
                 }, r -> r.updateCount));
+        invalidate(List.of(id));
+        return count;
     }
 
     @Override
     public int delete(ID id) throws SQLException {
-        final String DELETE = """
-                DELETE FROM %s WHERE id = ?
-                """.formatted(profile.getTableName());
-        return withConnection(connection ->
-                doUpdate(connection, DELETE, ps -> setPreparedStatementValue(ps, 1, id),
+        assertRowId();
+        final String DELETE = profile.getStatements().deleteById();
+        int count = withConnection(connection ->
+                executeUpdate(connection, DELETE, ps -> setPreparedStatementValue(ps, 1, id),
                         RSWrapper::getUpdateCount));
+        invalidate(List.of(id));
+        return count;
     }
 
     @Override
     public int deleteAll(String whereClause, Object... args) throws SQLException {
         final String STATEMENT = """
                 DELETE FROM %s WHERE %s""".formatted(getProfile().getTableName(), whereClause);
-        return withConnection(connection -> doUpdate(connection, STATEMENT, ps -> {
+        int count = withConnection(connection -> executeUpdate(connection, STATEMENT, ps -> {
                     for (int i = 0; i < args.length; i++) {
                         setPreparedStatementValue(ps, i + 1, args[i]);
                     }
                 },
                 RSWrapper::getUpdateCount));
+        invalidateAll();
+        return count;
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public void refresh(T entity) throws SQLException {
-        if (withConnection(connection -> {
+        assertRowId();
+        if (withReadConnection(connection -> {
                     T found = read(connection, (ID) profile.getIdValue(entity));
                     if (found != null) profile.copy(found, entity);
                     return found;
@@ -329,12 +912,15 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
 
     @Override
     public List<T> findAll(String whereClause, Object... args) throws SQLException {
-        final String STATEMENT = """
-                SELECT * FROM %s
-                WHERE %s
-                """.formatted(profile.getTableName(), whereClause);
-        return withConnection((connection ->
-                doQuery(connection, STATEMENT,
+        final String STATEMENT = profile.getStatements().selectWhere(whereClause);
+        QueryCache current = readableQueryCache();
+        if (current != null) return current.computeIfAbsent(profile, STATEMENT, args, () -> findAllUncached(STATEMENT, args));
+        return findAllUncached(STATEMENT, args);
+    }
+
+    private List<T> findAllUncached(String statement, Object... args) throws SQLException {
+        return withReadConnection((connection ->
+                doQuery(connection, statement,
                         ps -> {
                             for (int i = 0; i < args.length; i++)
                                 setPreparedStatementValue(ps, i + 1, args[i]);
@@ -347,12 +933,159 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
     }
 
     /**
+     * @return keys of the entity, built on the first call
+     */
+    public UniqueKeys getUniqueKeys() {
+        if (uniqueKeys == null) uniqueKeys = new UniqueKeys(profile);
+        return uniqueKeys;
+    }
+
+    @Override
+    public Optional<T> findByKeys(T entity) throws SQLException {
+        assertRowId();
+        UniqueKeys keys = getUniqueKeys();
+        int mask = keys.mask(entity);
+        if (mask == 0) return Optional.empty();
+        List<T> stored = query(keys.lookupStatement(mask), keys.lookupArgs(mask, entity).toArray());
+        return keys.choose(entity, stored);
+    }
+
+    /**
+     * Looks up the stored records by one query per {@link #getBatchSize()} entities
+     */
+    @Override
+    public List<Optional<T>> findAllByKeys(List<T> entities) throws SQLException {
+        assertRowId();
+        UniqueKeys keys = getUniqueKeys();
+        List<Optional<T>> result = new ArrayList<>(entities.size());
+        for (int from = 0; from < entities.size(); from += batchSize) {
+            List<T> chunk = entities.subList(from, Math.min(from + batchSize, entities.size()));
+            List<Object> args = new ArrayList<>();
+            String statement = keys.bulkLookupStatement(chunk, args);
+            List<T> stored = statement == null ? List.of() : query(statement, args.toArray());
+            result.addAll(keys.chooseAll(chunk, stored));
+        }
+        return result;
+    }
+
+    /**
+     * One query per {@link #MAX_IN_LIST_SIZE} owners
+     */
+    @Override
+    public <O> Map<O, List<T>> findJoined(EntityProfile joinProfile, Collection<O> ownerIds) throws SQLException {
+        Map<O, List<T>> result = new LinkedHashMap<>();
+        @SuppressWarnings("unchecked")
+        TypeCodec<O> ownerCodec = (TypeCodec<O>) TypeCodecs.find(joinProfile.getColumnByField("ownerId").getTargetJavaType());
+        int ownerIndex = profile.getCreateTableColumnList().size() + 1;
+        readInChunks(StatementBuilder.buildJoinFetchStatement(profile, joinProfile),
+                "j." + joinProfile.getColumnByField("ownerId").getColumnName(), ownerIds,
+                "j." + (joinProfile.isWithoutRowId() ? joinProfile.getColumnByField("embeddedId").getColumnName()
+                        : joinProfile.getIdColumn().getColumnName()),
+                rsWrapper -> {
+                    T entity = toEntity(rsWrapper);
+                    result.computeIfAbsent(ownerCodec.read(rsWrapper.getResultSet(), ownerIndex), id -> new ArrayList<>()).add(entity);
+                });
+        return result;
+    }
+
+    @Override
+    public Page<T> page(String[] keyColumns, Object[] afterKey, int size) throws SQLException {
+        assertRowId();
+        if (size < 1)
+            throw new IllegalArgumentException("Page size should be positive: " + size);
+        List<EntityProfile.Column> keys = new ArrayList<>();
+        for (String columnName : keyColumns) {
+            EntityProfile.Column column = profile.getColumn(columnName);
+            if (column == null || !column.isPrimitive())
+                throw new IllegalArgumentException("No such column: " + columnName);
+            if (!keys.contains(column)) keys.add(column);
+        }
+        keys.remove(profile.getIdColumn());
+        keys.add(profile.getIdColumn());
+        if (afterKey != null && afterKey.length != keys.size())
+            throw new IllegalArgumentException("Expected " + keys.size() + " key values for " + keys.stream()
+                    .map(EntityProfile.Column::getColumnName).toList() + ", got " + afterKey.length);
+
+        final String statement = StatementBuilder.buildKeysetPageStatement(profile, keys, afterKey != null);
+        List<T> content = withReadConnection(connection ->
+                doQuery(connection, statement,
+                        ps -> {
+                            int i = 1;
+                            if (afterKey != null)
+                                for (Object value : afterKey) setPreparedStatementValue(ps, i++, value);
+                            ps.setInt(i, size);
+                        },
+                        rsWrapper -> rsWrapper.stream()
+                                .map(ignore -> toEntity(rsWrapper))
+                                .toList()
+                )
+        );
+        Object[] nextKey = null;
+        if (content.size() == size) {
+            T last = content.get(content.size() - 1);
+            nextKey = keys.stream().map(column -> column.getValue(last)).toArray();
+        }
+        return new Page<>(content, keys.stream().map(EntityProfile.Column::getColumnName).toArray(String[]::new), nextKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <P> List<P> project(Class<P> type, String whereClause, Object... args) throws SQLException {
+        Projection<P> projection = (Projection<P>) projections.computeIfAbsent(type, key -> Projection.of(profile, type));
+        return query(projection, whereClause, args);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<T> findPartial(String[] fieldNames, String whereClause, Object... args) throws SQLException {
+        Projection<T> projection = (Projection<T>) projections.computeIfAbsent(List.of(fieldNames),
+                key -> Projection.ofEntity(profile, fieldNames));
+        return query(projection, whereClause, args);
+    }
+
+    private <P> List<P> query(Projection<P> projection, String whereClause, Object... args) throws SQLException {
+        return withReadConnection(connection ->
+                doQuery(connection, projection.selectWhere(whereClause),
+                        ps -> {
+                            for (int i = 0; i < args.length; i++)
+                                setPreparedStatementValue(ps, i + 1, args[i]);
+                        },
+                        rsWrapper -> {
+                            List<P> result = new ArrayList<>();
+                            while (rsWrapper.getResultSet().next())
+                                result.add(projection.mapper().map(rsWrapper.getResultSet()));
+                            return result;
+                        }
+                )
+        );
+    }
+
+    /**
+     * SELECT statements use the read connection and the query cache. The others use the writer connection
+     * and drop the cached entities and query results of the table
      * @throws SQLException          {@inheritDoc}
      * @throws IllegalStateException {@inheritDoc}
      */
     @Override
     public List<T> query(String sqlQuery, Object... args) throws SQLException {
-        return withConnection((connection ->
+        if (!isSelect(sqlQuery)) {
+            List<T> result = queryUncached(sqlQuery, false, args);
+            invalidateAll();
+            return result;
+        }
+        QueryCache current = readableQueryCache();
+        if (current != null)
+            return current.computeIfAbsent(profile, sqlQuery, args, () -> queryUncached(sqlQuery, true, args));
+        return queryUncached(sqlQuery, true, args);
+    }
+
+    private static boolean isSelect(String sqlQuery) {
+        String statement = sqlQuery.stripLeading().toUpperCase(Locale.ROOT);
+        return statement.startsWith("SELECT");
+    }
+
+    private List<T> queryUncached(String sqlQuery, boolean select, Object... args) throws SQLException {
+        ThrowingFunction<Connection, List<T>, SQLException> function = connection ->
                 doQuery(connection, sqlQuery,
                         ps -> {
                             assertParameterCount(ps, args.length);
@@ -362,8 +1095,8 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
                         rsWrapper -> rsWrapper.stream()
                                 .map(ignore -> toEntity(rsWrapper))
                                 .toList()
-                )
-        ));
+                );
+        return select ? withReadConnection(function) : withConnection(function);
     }
 
     private void assertParameterCount(PreparedStatement ps, int params) {
@@ -379,29 +1112,19 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
     }
 
 
-    private static void setPreparedStatement(PreparedStatement ps, List<EntityProfile.Column> profile, Object entity) {
-        for (int i = 0; i < profile.size(); i++) {
-            try {
-                setPreparedStatementValue(ps, i + 1, profile.get(i).getField().get(entity));
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException(e);
-            }
+    private static void setPreparedStatement(PreparedStatement ps, List<EntityProfile.Column> columns, Object entity) {
+        try {
+            for (int i = 0; i < columns.size(); i++)
+                columns.get(i).getCodec().bind(ps, i + 1, entity);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
     }
 
     private static void setPreparedStatementValue(PreparedStatement ps, int parameterIndex, Object value) {
         try {
-            switch (value) {
-                case null -> {
-                }
-                case String str -> ps.setString(parameterIndex, str);
-                case Integer integer -> ps.setInt(parameterIndex, integer);
-                case Double dbl -> ps.setDouble(parameterIndex, dbl);
-                case Float flt -> ps.setFloat(parameterIndex, flt);
-                case Boolean bln -> ps.setBoolean(parameterIndex, bln);
-                case Array array -> ps.setArray(parameterIndex, array);
-                default -> throw new IllegalStateException("Unexpected value type: " + value.getClass().getTypeName());
-            }
+            if (value == null) ps.setNull(parameterIndex, Types.NULL);
+            else TypeCodecs.forValue(value).bind(ps, parameterIndex, value);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -459,15 +1182,7 @@ public class DAOImpl<T, ID> implements DAO<T, ID> {
 
         public Object getValue(Class<?> targetTypeClass, int columnIndex) {
             try {
-                return switch (targetTypeClass.getSimpleName()) {
-                    case "Integer", "int" -> resultSet.getInt(columnIndex);
-                    case "Long", "long" -> resultSet.getLong(columnIndex);
-                    case "float" -> resultSet.getFloat(columnIndex);
-                    case "Double", "double" -> resultSet.getDouble(columnIndex);
-                    case "boolean", "Boolean" -> resultSet.getBoolean(columnIndex);
-                    case "String" -> resultSet.getString(columnIndex);
-                    default -> throw new IllegalArgumentException("Unknown data type: " + targetTypeClass);
-                };
+                return TypeCodecs.find(targetTypeClass).read(resultSet, columnIndex);
             } catch (SQLException e) {
                 throw new RuntimeException(e);
             }
@@ -1,6 +1,11 @@
 package com.jisj.orm;
 
+import com.jisj.orm.function.ThrowingSupplier;
+import com.jisj.orm.jdbc.ConnectionPool;
+import com.jisj.orm.jdbc.StatementCache;
 import org.sqlite.SQLiteDataSource;
+import org.sqlite.SQLiteErrorCode;
+import org.sqlite.SQLiteException;
 import org.sqlite.javax.SQLiteConnectionPoolDataSource;
 
 import javax.sql.DataSource;
@@ -9,17 +14,34 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Optional;
 import java.util.logging.Logger;
 
+import static com.jisj.orm.utils.sqlExWrap;
+
 /**
  *  Factory for connections to the physical data source
  */
-public class DBDataSource implements DataSource {
+public class DBDataSource implements DataSource, AutoCloseable {
     private static final Logger log = Logger.getLogger(DBDataSource.class.getName());
     private final DataSource dataSource;
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private final StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+    public static final Duration DEFAULT_CONNECTION_TIMEOUT = Duration.ofSeconds(30);
+    private final boolean pooled;
+    private int readConnections = DEFAULT_READ_CONNECTIONS;
+    private Duration connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private volatile ConnectionPool pool;
+    private volatile Pragmas pragmas;
 
-    private DBDataSource(DataSource dataSource) {
+    private DBDataSource(DataSource dataSource, boolean pooled) {
         this.dataSource = dataSource;
+        this.pooled = pooled;
         org.sqlite.SQLiteConfig config = new org.sqlite.SQLiteConfig();
         config.enableCaseSensitiveLike(false);
         config.enforceForeignKeys(true);
@@ -27,9 +49,252 @@ public class DBDataSource implements DataSource {
         log.fine("New instance: " + config);
     }
 
+    /**
+     * Gives the connection of the current thread transaction, the writer connection of the pool
+     * or new connection from the data source
+     */
     @Override
     public Connection getConnection() throws SQLException {
-        return dataSource.getConnection();
+        Transaction current = transaction.get();
+        if (current != null) return current.getConnection();
+        if (pooled) return pool().getWriteConnection();
+        return open(true);
+    }
+
+    /**
+     * Gives the connection of the current thread transaction, a read-only connection of the pool
+     * or new connection from the data source. The connection should be used for queries only
+     */
+    public Connection getReadConnection() throws SQLException {
+        Transaction current = transaction.get();
+        if (current != null) return current.getConnection();
+        if (pooled) return pool().getReadConnection();
+        return open(false);
+    }
+
+    private Connection open(boolean writer) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            applyPragmas(connection, writer);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * The journal mode is switched only if it differs: the switch needs the database not used by other connections.
+     * If the database is busy the journal mode is kept and the other pragmas are applied
+     */
+    private void applyPragmas(Connection connection, boolean writer) throws SQLException {
+        Pragmas current = pragmas;
+        if (current == null) return;
+        try (Statement statement = connection.createStatement()) {
+            if (writer && current.journalMode() != null) {
+                Pragmas journal = Pragmas.builder().journalMode(current.journalMode()).build();
+                if (!journal.current(connection).equals(journal)) {
+                    try {
+                        statement.execute("PRAGMA journal_mode=" + current.journalMode().getValue());
+                    } catch (SQLiteException e) {
+                        if ((e.getResultCode().code & 0xFF) != SQLiteErrorCode.SQLITE_BUSY.code) throw e;
+                        log.warning("Journal mode is not switched to " + current.journalMode() + ", the database is busy");
+                    }
+                }
+                current = current.toBuilder().journalMode(null).build();
+            }
+            for (String pragma : current.statements(writer)) statement.execute(pragma);
+        }
+    }
+
+    /**
+     * Sets the pragmas of the connections, can be switched at runtime: the new connections apply them at once,
+     * the pooled connections apply them by the next use out of a transaction
+     * @param pragmas pragmas or a preset like {@link Pragmas#THROUGHPUT}, {@code null} - the connection defaults
+     */
+    public void setPragmas(Pragmas pragmas) {
+        this.pragmas = pragmas;
+        ConnectionPool current = pool;
+        if (current != null) current.setConfigurer(this::applyPragmas);
+        log.fine("Pragmas: " + pragmas);
+    }
+
+    /**
+     * @param preset durable, throughput or bulk-load
+     * @see Pragmas#preset(String)
+     */
+    public void setPragmas(String preset) {
+        setPragmas(Pragmas.preset(preset));
+    }
+
+    public Pragmas getPragmas() {
+        return pragmas;
+    }
+
+    /**
+     * Performs the work with the pragmas and switches back to the previous ones. The values which the previous pragmas
+     * do not set are read from the writer connection before the switch
+     * <pre>{@code
+     * dataSource.withPragmas(Pragmas.BULK_LOAD, () -> crud.addAll(rows));
+     * }</pre>
+     */
+    public <R, E extends Exception> R withPragmas(Pragmas pragmas, ThrowingSupplier<R, E> work) throws E {
+        Pragmas previous = this.pragmas;
+        Pragmas actual = sqlExWrap(() -> {
+            try (Connection writer = getConnection()) {
+                return pragmas.current(writer);
+            }
+        });
+        setPragmas(pragmas);
+        try {
+            return work.get();
+        } finally {
+            setPragmas(previous != null ? previous.orElse(actual) : actual);
+        }
+    }
+
+    /**
+     * @return pool of the pooled data source, created by the first connection request
+     */
+    public Optional<ConnectionPool> getPool() {
+        return Optional.ofNullable(pool);
+    }
+
+    private ConnectionPool pool() {
+        ConnectionPool current = pool;
+        if (current != null) return current;
+        synchronized (this) {
+            if (pool == null) {
+                //each connection to the private in-memory database opens a new database
+                int readers = isPrivateMemory() ? 0 : readConnections;
+                pool = new ConnectionPool(dataSource::getConnection, readers, connectionTimeout,
+                        statementCacheSize, statementCacheStats);
+                pool.setConfigurer(this::applyPragmas);
+                log.fine("Connection pool: " + readers + " read connections and the writer");
+            }
+            return pool;
+        }
+    }
+
+    private boolean isPrivateMemory() {
+        String url = getUrl();
+        return url.contains(":memory:") && !url.contains("cache=shared");
+    }
+
+    /**
+     * Sets count of the read-only connections of the pooled data source, should be set before the first connection
+     * @param readConnections connections count, 0 - the reads use the writer connection. Default: {@link #DEFAULT_READ_CONNECTIONS}
+     */
+    public void setReadConnections(int readConnections) {
+        if (readConnections < 0)
+            throw new IllegalArgumentException("Read connections count should not be negative: " + readConnections);
+        assertPoolNotStarted();
+        this.readConnections = readConnections;
+    }
+
+    public int getReadConnections() {
+        return readConnections;
+    }
+
+    /**
+     * Sets max time to wait for a connection of the pooled data source, should be set before the first connection
+     * @param connectionTimeout wait time. Default: {@link #DEFAULT_CONNECTION_TIMEOUT}
+     */
+    public void setConnectionTimeout(Duration connectionTimeout) {
+        if (connectionTimeout.isNegative())
+            throw new IllegalArgumentException("Timeout should not be negative: " + connectionTimeout);
+        assertPoolNotStarted();
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public Duration getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    private void assertPoolNotStarted() {
+        if (pool != null)
+            throw new IllegalStateException("Connection pool already started");
+    }
+
+    /**
+     * Closes the connections of the pool
+     */
+    @Override
+    public void close() {
+        ConnectionPool current = pool;
+        if (current != null) current.close();
+    }
+
+    /**
+     * Opens new transaction and binds it to the current thread
+     * @return transaction, should be closed
+     * @throws IllegalStateException when the thread already has a transaction
+     */
+    public Transaction beginTransaction() throws SQLException {
+        if (transaction.get() != null)
+            throw new IllegalStateException("Transaction already started in " + Thread.currentThread());
+        Transaction tx = new Transaction(this, pooled ? pool().getWriteConnection()
+                : StatementCache.wrap(open(true), statementCacheSize, statementCacheStats));
+        transaction.set(tx);
+        return tx;
+    }
+
+    /**
+     * @return transaction of the current thread
+     */
+    public Optional<Transaction> getTransaction() {
+        return Optional.ofNullable(transaction.get());
+    }
+
+    /**
+     * Performs the work in the transaction: commits when the work is done, rolls back on any exception.
+     * If the thread already has a transaction the work joins it
+     * @param work any DAO and repository calls
+     * @return result of the work
+     * @param <E> exception of the work
+     */
+    public <R, E extends Exception> R inTransaction(ThrowingSupplier<R, E> work) throws E {
+        if (transaction.get() != null) return work.get();
+        final Transaction tx = sqlExWrap(this::beginTransaction);
+        try {
+            R result = work.get();
+            sqlExWrap(() -> {
+                tx.commit();
+                return null;
+            });
+            return result;
+        } finally {
+            sqlExWrap(() -> {
+                tx.close();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Sets max count of prepared statements cached by each long-lived connection
+     * @param statementCacheSize statements count, 0 - cache is disabled. Default: {@link #DEFAULT_STATEMENT_CACHE_SIZE}
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0)
+            throw new IllegalArgumentException("Statement cache size should not be negative: " + statementCacheSize);
+        assertPoolNotStarted();
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @return hit/miss counters of the prepared statement caches of all connections
+     */
+    public StatementCache.Stats getStatementCacheStats() {
+        return statementCacheStats;
+    }
+
+    void unbind(Transaction tx) {
+        if (transaction.get() == tx) transaction.remove();
     }
 
     @Override
@@ -87,7 +352,7 @@ public class DBDataSource implements DataSource {
      * @see #isWrapperFor(Class)
      */
     public static DBDataSource newDataSource(StandardConnection standardConnection) {
-        DBDataSource db = new DBDataSource(new SQLiteDataSource());
+        DBDataSource db = new DBDataSource(new SQLiteDataSource(), false);
         ((SQLiteDataSource)db.dataSource).setUrl(standardConnection.getUrl());
         log.info("Connection set: " + ((SQLiteDataSource)db.dataSource).getUrl());
         return db;
@@ -99,25 +364,40 @@ public class DBDataSource implements DataSource {
      * @return DBDataSource instance
      */
     public static DBDataSource newDataSource(Path dbPath) {
-        DBDataSource db = new DBDataSource(new SQLiteDataSource());
+        DBDataSource db = new DBDataSource(new SQLiteDataSource(), false);
         ((SQLiteDataSource)db.dataSource).setUrl("jdbc:sqlite:" + dbPath.toAbsolutePath());
         log.info("Connection set: " + ((SQLiteDataSource)db.dataSource).getUrl());
         return db;
     }
 
     /**
-     * Creates new pooled {@link SQLiteConnectionPoolDataSource} data source instance with standard connection
+     * Creates new pooled {@link SQLiteConnectionPoolDataSource} data source instance with standard connection.
+     * The connections are kept by the {@link ConnectionPool}: the read-only connections and one writer connection,
+     * the pragmas are applied once per connection
      * @param standardConnection {@link StandardConnection}
      * @return DBDataSource instance
      * @see #isWrapperFor(Class)
      */
     public static DBDataSource newPooledDataSource(StandardConnection standardConnection) {
-        DBDataSource db = new DBDataSource(new SQLiteConnectionPoolDataSource());
+        DBDataSource db = new DBDataSource(new SQLiteConnectionPoolDataSource(), true);
         ((SQLiteDataSource)db.dataSource).setUrl(standardConnection.getUrl());
         log.info("Connection set: " + ((SQLiteDataSource)db.dataSource).getUrl());
         return db;
     }
 
+    /**
+     * Creates new pooled {@link SQLiteConnectionPoolDataSource} data source instance with connection string
+     * @param dbPath path to DB file
+     * @return DBDataSource instance
+     * @see #newPooledDataSource(StandardConnection)
+     */
+    public static DBDataSource newPooledDataSource(Path dbPath) {
+        DBDataSource db = new DBDataSource(new SQLiteConnectionPoolDataSource(), true);
+        ((SQLiteDataSource)db.dataSource).setUrl("jdbc:sqlite:" + dbPath.toAbsolutePath());
+        log.info("Connection set: " + ((SQLiteDataSource)db.dataSource).getUrl());
+        return db;
+    }
+
     /**
      *
      * @return The location of the database file
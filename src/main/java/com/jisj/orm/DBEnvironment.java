@@ -4,12 +4,14 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.java.Log;
 import com.jisj.orm.entity.JoinTableEntityIntID;
+import com.jisj.orm.function.ThrowingSupplier;
 import com.jisj.orm.repository.CRUDRepositoryImpl;
 import com.jisj.orm.repository.OrmRepoContainer;
 import com.jisj.orm.repository.PersistRepository;
 import com.jisj.orm.repository.RepositoryFactory;
 
 import java.io.Closeable;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +30,22 @@ public class DBEnvironment implements Closeable {
     private StartMode startMode = StartMode.CREATE_IF_NOT_EXISTS;
     @Setter
     private boolean formattedSQLStatement = false;
+    /**
+     * Join tables are created WITHOUT ROWID with the composite primary key, should be set before {@code initializeEntities()}
+     * @see EntityProfileFactory#createJoinTableProfile(EntityProfile.Column, EntityProfile, EntityProfile, boolean)
+     */
+    @Getter
+    @Setter
+    private boolean compactJoinTables = false;
+    /**
+     * Query cache shared by the DAO of all tables, should be set before {@code initializeEntities()}
+     * @see DAOImpl#setQueryCache(QueryCache)
+     */
+    @Getter
+    @Setter
+    private QueryCache queryCache;
+    //entity cache settings by entity class
+    private final Map<Class<?>, EntityCacheSettings> entityCaches = new HashMap<>();
     @Getter
     private final OrmRepoContainer global = new OrmRepoContainer();
     @Getter
@@ -36,6 +54,9 @@ public class DBEnvironment implements Closeable {
     private final Map<Class<?>, Consumer<OrmRepoContainer>> onIntegrityCheckActions = new HashMap<>();
 
 
+    private record EntityCacheSettings(int maxSize, Duration ttl) {
+    }
+
     private DBEnvironment(DBDataSource dataSource) {
         this.dataSource = dataSource;
     }
@@ -66,10 +87,11 @@ public class DBEnvironment implements Closeable {
     }
 
     /**
-     * Closes current instance
+     * Closes current instance and the connections of its data source
      */
     @Override
     public void close() {
+        dataSource.close();
         log.info("DB instance was closed: " + dataSource.getUrl());
         instance = null;
     }
@@ -82,6 +104,23 @@ public class DBEnvironment implements Closeable {
         return dataSource;
     }
 
+    /**
+     * Performs the work in one transaction: all DAO and repository calls of the current thread inside the work
+     * share one connection and are committed once
+     * <pre>{@code
+     * db.inTransaction(() -> {
+     *     persistRepository.save(entity);
+     *     return entity.getId();
+     * });
+     * }</pre>
+     * @param work any DAO and repository calls
+     * @return result of the work
+     * @see DBDataSource#inTransaction(ThrowingSupplier)
+     */
+    public <R, E extends Exception> R inTransaction(ThrowingSupplier<R, E> work) throws E {
+        return dataSource.inTransaction(work);
+    }
+
     /**
      * Sets start mode for the database
      *
@@ -91,6 +130,19 @@ public class DBEnvironment implements Closeable {
         this.startMode = startMode;
     }
 
+    /**
+     * Sets the second-level cache of the entity by ID.
+     * Setter should be applied BEFORE {@code initializeEntities()} call
+     *
+     * @param entityClass table entity class
+     * @param maxSize     entries count
+     * @param ttl         time to live of an entry, {@link Duration#ZERO} - entries do not expire
+     * @see DAOImpl#setCache(EntityCache)
+     */
+    public void setEntityCache(Class<?> entityClass, int maxSize, Duration ttl) {
+        entityCaches.put(entityClass, new EntityCacheSettings(maxSize, ttl));
+    }
+
     /**
      * Sets an action that will be performed after table creating, for example: to fill initial data
      *
@@ -142,7 +194,7 @@ public class DBEnvironment implements Closeable {
                     if (joinDAO == null)
                         throw new IllegalArgumentException("DAO not found for joined " + column.getTargetJavaType());
                     //TODO Refactoring for exclude second pass
-                    column.join(joinDAO.getProfile());
+                    column.join(joinDAO.getProfile(), compactJoinTables);
 
                     DAO<?, ?> joinTableDao = DAOFactory.createDAO(dataSource, column.getJoinTableProfile());
                     global.add(joinTableDao);
@@ -152,6 +204,10 @@ public class DBEnvironment implements Closeable {
     private void initEnvironment() {
         global.getDaoSet().forEach(dao -> {
             ((DAOImpl<?, ?>) dao).setFormattedSQLStatement(formattedSQLStatement);
+            ((DAOImpl<?, ?>) dao).setQueryCache(queryCache);
+            EntityCacheSettings cache = entityCaches.get(dao.getProfile().getEntityClass());
+            if (cache != null)
+                ((DAOImpl<?, ?>) dao).setCache(new EntityCache(dao.getProfile(), cache.maxSize(), cache.ttl()));
             CRUDRepositoryImpl<?, ?> crud = (CRUDRepositoryImpl<?, ?>) RepositoryFactory.createCRUDRepository(dao);
             crud.setGlobal(global);
             global.add(crud);
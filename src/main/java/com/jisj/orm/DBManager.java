@@ -8,6 +8,7 @@ import java.sql.SQLException;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
+import static com.jisj.orm.StatementBuilder.buildCreateIndexStatements;
 import static com.jisj.orm.StatementBuilder.buildCreateTableStatement;
 import static com.jisj.orm.StatementBuilder.buildDropTableStatement;
 import static com.jisj.orm.utils.sqlExWrap;
@@ -23,6 +24,8 @@ public class DBManager {
             log.info("Create table: " + dao.getProfile().getTableName());
             baseDao.withConnection(connection -> {
                 baseDao.doUpdate(connection, createStatement);
+                for (String indexStatement : buildCreateIndexStatements(dao.getProfile(), true))
+                    baseDao.doUpdate(connection, indexStatement);
                 return null;
             });
         } catch (SQLException e) {
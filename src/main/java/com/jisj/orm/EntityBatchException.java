@@ -0,0 +1,33 @@
+package com.jisj.orm;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a batched write fails. Points to the entity that broke the batch.
+ * The cause is the original driver exception, so {@link DAOException#onSQLError} can classify it
+ */
+public class EntityBatchException extends SQLException {
+    private static final long serialVersionUID = 1L;
+    private final transient Object failedEntity;
+    private final int failedIndex;
+
+    public EntityBatchException(SQLException cause, Object failedEntity, int failedIndex) {
+        super("Batch failed at index " + failedIndex + ": " + cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+        this.failedEntity = failedEntity;
+        this.failedIndex = failedIndex;
+    }
+
+    /**
+     * @return the entity which statement has failed
+     */
+    public Object getFailedEntity() {
+        return failedEntity;
+    }
+
+    /**
+     * @return index of the failed entity in the batch source list
+     */
+    public int getFailedIndex() {
+        return failedIndex;
+    }
+}
@@ -0,0 +1,151 @@
+package com.jisj.orm;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second-level cache of the entities of one table by ID.
+ * The least recently used entries are evicted over the max size, an entry expires after its time to live.
+ * The entities are copied on put and on read, so the callers never share the cached instances.
+ * The copies are made outside the lock, the cached instances are never changed
+ *
+ * @see DAOImpl#setCache(EntityCache)
+ */
+public class EntityCache {
+    private final EntityProfile profile;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //incremented by every invalidation, a value read before it is not put
+    private long invalidations = 0;
+    private final Stats stats = new Stats();
+
+    private record Entry(Object entity, long expiresAt) {
+    }
+
+    /**
+     * @param maxSize entries count
+     * @param ttl     time to live of an entry, {@link Duration#ZERO} - entries do not expire
+     */
+    public EntityCache(EntityProfile profile, int maxSize, Duration ttl) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Cache size should be positive: " + maxSize);
+        if (ttl.isNegative())
+            throw new IllegalArgumentException("Time to live should not be negative: " + ttl);
+        this.profile = profile;
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * @return copy of the cached entity or {@code null}
+     */
+    public Object get(Object id) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0) {
+                entries.remove(id);
+                stats.expirations.increment();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            stats.misses.increment();
+            return null;
+        }
+        stats.hits.increment();
+        return copy(entry.entity);
+    }
+
+    /**
+     * @return stamp to put the value read after this call
+     * @see #put(Object, long)
+     */
+    public synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * Puts a copy of the entity if nothing was invalidated since the stamp, so a concurrent write is not overwritten
+     * by the value read before it
+     */
+    public void put(Object entity, long stamp) {
+        Object id = profile.getIdValue(entity);
+        if (id == null) return;
+        Entry entry = new Entry(copy(entity), System.nanoTime() + ttlNanos);
+        synchronized (this) {
+            if (stamp != invalidations) return;
+            entries.put(id, entry);
+            Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxSize) {
+                eldest.next();
+                eldest.remove();
+                stats.evictions.increment();
+            }
+        }
+    }
+
+    public synchronized void invalidate(Object id) {
+        invalidations++;
+        entries.remove(id);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private Object copy(Object entity) {
+        Object copy = profile.newEntityInstance();
+        profile.copy(entity, copy);
+        return copy;
+    }
+
+    /**
+     * Usage counters of the entity cache
+     */
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder expirations = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public long getExpirations() {
+            return expirations.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "EntityCache.Stats{" +
+                    "hits=" + getHits() +
+                    ", misses=" + getMisses() +
+                    ", evictions=" + getEvictions() +
+                    ", expirations=" + getExpirations() +
+                    '}';
+        }
+    }
+}
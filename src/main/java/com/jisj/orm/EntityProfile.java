@@ -1,13 +1,18 @@
 package com.jisj.orm;
 
 import jakarta.persistence.*;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.util.*;
 import java.util.stream.Stream;
@@ -27,87 +32,135 @@ public class EntityProfile {
 
     private final Map<String, Column> columnsByField = new HashMap<>();
     private final Map<String, Column> columns = new HashMap<>();
+    //null if the records have no ID, see withoutRowId
     @Setter
     private Column idColumn;
     private final List<ForeignKey> foreignKeys = new ArrayList<>();
-    private final Map<String, String> statements = new HashMap<>();
+    //composite PRIMARY KEY by column names, empty if the key is the ID column
+    @Setter
+    private List<String> primaryKey = List.of();
+    //table is created WITHOUT ROWID, requires the composite primary key
+    @Setter
+    private boolean withoutRowId = false;
+    //secondary indexes by column names
+    private final List<List<String>> indexes = new ArrayList<>();
+    @Setter
+    private EntityStatements statements;
+    //column views sorted by order, computed once by freeze()
+    private List<Column> createTableColumnList = List.of();
+    private List<Column> insertablePrimitiveColumnList = List.of();
+    private List<Column> updatablePrimitiveColumnList = List.of();
+    private List<Column> uniquePrimitiveColumnList = List.of();
+    private List<Column> manyToManyColumnList = List.of();
+
+    @Getter(AccessLevel.NONE)
+    private final MethodHandle instanceFactory;
 
     public EntityProfile(Class<?> entityClass) {
         this.entityClass = entityClass;
         this.noArgsConstructor = findNoArgsConstructor(entityClass);
+        this.instanceFactory = findInstanceFactory(noArgsConstructor);
+    }
+
+    private static MethodHandle findInstanceFactory(Constructor<?> constructor) {
+        if (Modifier.isAbstract(constructor.getDeclaringClass().getModifiers())) return null;
+        try {
+            return MethodHandles.privateLookupIn(constructor.getDeclaringClass(), MethodHandles.lookup())
+                    .unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Object.class));
+        } catch (IllegalAccessException e) {
+            return null;
+        }
     }
 
     public Object newEntityInstance() {
+        if (instanceFactory != null) {
+            try {
+                return (Object) instanceFactory.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
         try {
-            Constructor<?> constructor = entityClass.getDeclaredConstructor();
-            return constructor.newInstance();
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("No args constructor not found", e);
+            noArgsConstructor.setAccessible(true);
+            return noArgsConstructor.newInstance();
         } catch (InvocationTargetException | InstantiationException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
 
     public void setIdValue(Object entity, Object value) {
+        if (getIdColumn() == null)
+            throw new UnsupportedOperationException("The records of " + getTableName() + " have no ID");
         getIdColumn().setValue(entity, value);
     }
 
+    /**
+     * @return ID of the entity or {@code null} if the records have no ID (a table created WITHOUT ROWID)
+     */
     public Object getIdValue(Object entity) {
-        return getIdColumn().getValue(entity);
+        return getIdColumn() == null ? null : getIdColumn().getValue(entity);
     }
 
     public void copy(Object source, Object destination) {
         if (source.getClass() != destination.getClass())
             throw new IllegalArgumentException("Wrong class types: " + source.getClass() + " and " + destination.getClass());
-        getCreateTableColumns()
-                .forEach(column -> {
-                    try {
-                        column.getField().set(destination, column.getField().get(source));
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+        for (Column column : createTableColumnList)
+            column.setValue(destination, column.getValue(source));
+    }
+
+    /**
+     * @return {@code true} if the update of the entity would not change the stored record
+     */
+    public boolean hasSameUpdatableValues(Object entity, Object stored) {
+        for (Column column : updatablePrimitiveColumnList)
+            if (!Objects.equals(column.getValue(entity), column.getValue(stored))) return false;
+        return true;
     }
 
     public void enrich(Object entity, Object fromEntity) {
         if (entity.getClass() != fromEntity.getClass())
             throw new IllegalArgumentException("Wrong class types: " + entity.getClass() + " and " + fromEntity.getClass());
-        getCreateTableColumns()
-                .filter(column -> column.getValue(entity) == null)
-                .forEach(column -> column.setValue(entity, column.getValue(fromEntity)));
+        for (Column column : createTableColumnList)
+            if (column.getValue(entity) == null) column.setValue(entity, column.getValue(fromEntity));
+    }
+
+    /**
+     * Computes the column views and resolves the column codecs once the column set is complete,
+     * so hot paths do not filter and sort on every call
+     */
+    void freeze() {
+        List<Column> sorted = getColumnsByField().values().stream()
+                .sorted(Comparator.comparing(Column::getOrder))
+                .toList();
+        createTableColumnList = sorted.stream().filter(column -> !column.isManyToManyOwner()).toList();
+        insertablePrimitiveColumnList = sorted.stream().filter(Column::isPrimitive).filter(Column::isInsertable).toList();
+        updatablePrimitiveColumnList = sorted.stream().filter(Column::isPrimitive).filter(Column::isUpdatable).toList();
+        uniquePrimitiveColumnList = sorted.stream().filter(Column::isPrimitive).filter(Column::isUnique).toList();
+        manyToManyColumnList = sorted.stream().filter(Column::isManyToManyOwner).toList();
+        createTableColumnList.stream().filter(Column::isPrimitive).forEach(Column::resolveCodec);
     }
 
     public Stream<Column> getCreateTableColumns() {
-        return getColumnsByField().values().stream()
-                .filter(column -> !column.isManyToManyOwner())
-                .sorted(Comparator.comparing(Column::getOrder));
+        return createTableColumnList.stream();
     }
 
     public Stream<Column> getInsertablePrimitiveColumns() {
-        return getColumnsByField().values().stream()
-                .filter(Column::isPrimitive)
-                .filter(Column::isInsertable)
-                .sorted(Comparator.comparing(Column::getOrder));
+        return insertablePrimitiveColumnList.stream();
     }
 
     public Stream<Column> getUpdatablePrimitiveColumns() {
-        return getColumnsByField().values().stream()
-                .filter(Column::isPrimitive)
-                .filter(Column::isUpdatable)
-                .sorted(Comparator.comparing(Column::getOrder));
+        return updatablePrimitiveColumnList.stream();
     }
 
     public Stream<Column> getUniquePrimitiveColumns() {
-        return getColumnsByField().values().stream()
-                .filter(Column::isPrimitive)
-                .filter(Column::isUnique)
-                .sorted(Comparator.comparing(Column::getOrder));
+        return uniquePrimitiveColumnList.stream();
     }
 
     public Stream<Column> getManyToManyColumns() {
-        return getColumnsByField().values().stream()
-                .filter(Column::isManyToManyOwner)
-                .sorted(Comparator.comparing(Column::getOrder));
+        return manyToManyColumnList.stream();
     }
 
     public Column getColumnByField(String fieldName) {
@@ -126,10 +179,6 @@ public class EntityProfile {
         return result;
     }
 
-    public String getStatement(String key) {
-        return getStatements().get(key);
-    }
-
     @Override
     public String toString() {
         return "EntityProfile{" +
@@ -162,6 +211,23 @@ public class EntityProfile {
         //javax.persistence.Column
         private EntityProfileFactory.ColumnAnnotation columnAnnotation;
         private String columnName;
+        //field accessors (Object)Object and (Object,Object)void
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private MethodHandle valueGetter;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private MethodHandle valueSetter;
+        //field accessors of the exact field type
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private MethodHandle fieldGetter;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private MethodHandle fieldSetter;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private ColumnCodec codec;
 
         public Column(Field field) {
             this.field = field;
@@ -211,18 +277,69 @@ public class EntityProfile {
             return field.getName();
         }
 
-        public void setValue(Object entity, Object value) {
+        /**
+         * Resolves the field getter and setter once, instead of the reflective access on every call
+         */
+        void resolveAccessors() {
             try {
-                getField().set(entity, value);
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+                MethodHandle getter = lookup.unreflectGetter(field);
+                MethodHandle setter = lookup.unreflectSetter(field);
+                if (Modifier.isStatic(field.getModifiers())) {
+                    getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                    setter = MethodHandles.dropArguments(setter, 0, Object.class);
+                }
+                fieldGetter = getter;
+                fieldSetter = setter;
+                valueGetter = getter.asType(MethodType.methodType(Object.class, Object.class));
+                valueSetter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
             } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("No access to the field " + field, e);
+            }
+        }
+
+        /**
+         * Resolves the codec by the field type and the target java type.
+         * A type without codec is left unresolved, such a column fails on the first use
+         */
+        void resolveCodec() {
+            try {
+                codec = ColumnCodec.of(targetJavaType, fieldGetter, fieldSetter);
+            } catch (IllegalArgumentException e) {
+                codec = null;
+            }
+        }
+
+        /**
+         * @return codec of the column, resolved when the profile is frozen or the target java type is set
+         * @throws IllegalArgumentException if the type has no codec
+         */
+        public ColumnCodec getCodec() {
+            if (codec == null) codec = ColumnCodec.of(targetJavaType, fieldGetter, fieldSetter);
+            return codec;
+        }
+
+        public void setTargetJavaType(Class<?> targetJavaType) {
+            this.targetJavaType = targetJavaType;
+            if (fieldGetter != null) resolveCodec();
+        }
+
+        public void setValue(Object entity, Object value) {
+            try {
+                valueSetter.invokeExact(entity, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
                 throw new RuntimeException(e);
             }
         }
 
         public Object getValue(Object entity) {
             try {
-                return getField().get(entity);
-            } catch (IllegalAccessException e) {
+                return (Object) valueGetter.invokeExact(entity);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
                 throw new RuntimeException(e);
             }
         }
@@ -256,7 +373,14 @@ public class EntityProfile {
         }
 
         public void join(EntityProfile embed) {
-            joinTableProfile = createJoinTableProfile(this, getParent(), embed);
+            join(embed, false);
+        }
+
+        /**
+         * @param compact the join table is created WITHOUT ROWID, see {@link EntityProfileFactory#createJoinTableProfile}
+         */
+        public void join(EntityProfile embed, boolean compact) {
+            joinTableProfile = createJoinTableProfile(this, getParent(), embed, compact);
         }
     }
 
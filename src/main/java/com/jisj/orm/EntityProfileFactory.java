@@ -14,6 +14,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class EntityProfileFactory {
     public static EntityProfile createProfile(Class<?> entityClass) {
         EntityProfile ep = buildProfile(entityClass);
+        ep.freeze();
         buildStatements(ep);
         return ep;
     }
@@ -85,7 +86,7 @@ public class EntityProfileFactory {
                 .filter(column -> !column.isTransientColumn())
                 .peek(column -> {
                     if (column.isId()) ep.setIdColumn(column);
-                    column.getField().setAccessible(true); //TODO Replace by handler
+                    column.resolveAccessors();
                     column.setOrder(order.incrementAndGet());
                 })
                 .forEach(column -> {
@@ -107,9 +108,7 @@ public class EntityProfileFactory {
     }
 
     public static void buildStatements(EntityProfile profile) {
-        profile.getStatements().put("UPDATE_BY_ID", StatementBuilder.buildUpdateByIdStatement(profile));
-        profile.getStatements().put("INSERT", StatementBuilder.buildInsertStatement(profile));
-//        profile.getStatements().put("READ_BY_ENTITY", StatementBuilder.buildReadByEntityStatement(profile));
+        profile.setStatements(EntityStatements.of(profile));
     }
 
 
@@ -132,6 +131,18 @@ public class EntityProfileFactory {
     public static EntityProfile createJoinTableProfile(EntityProfile.Column ownerColumn,
                                                        EntityProfile ownerProfile,
                                                        EntityProfile embeddedProfile) {
+        return createJoinTableProfile(ownerColumn, ownerProfile, embeddedProfile, false);
+    }
+
+    /**
+     * @param compact the table is created WITHOUT ROWID with PRIMARY KEY(owner, embedded) and the reverse index
+     *                (embedded, owner) instead of the surrogate ID and the unique constraint.
+     *                The ID of {@link JoinTableEntityIntID} is not stored, the links are ordered by the key
+     */
+    public static EntityProfile createJoinTableProfile(EntityProfile.Column ownerColumn,
+                                                       EntityProfile ownerProfile,
+                                                       EntityProfile embeddedProfile,
+                                                       boolean compact) {
         EntityProfile jp = buildProfile(JoinTableEntityIntID.class);
         //replace generic types of fields by the type of ownerID and embeddedId
         jp.getIdColumn().setTargetJavaType(Integer.class); //TODO find a way to get generic type from JoinTableEntityIntID.class
@@ -153,10 +164,19 @@ public class EntityProfileFactory {
         jp.getForeignKeys().add(new EntityProfile.ForeignKey(embeddedProfile.getTableName(),
                 new String[]{joinEmbeddedColumn.getColumnName()},
                 new String[]{jtParser.getInverseJoinReferenceNameOrElse(embeddedProfile.getIdColumn().getColumnName())}));
-        jp.setUniqueConstraints(List.of(customUniqueConstraint(joinOwnerColumn.getColumnName(), joinEmbeddedColumn.getColumnName())));
         jp.getColumns().put(joinOwnerColumn.getColumnName(), joinOwnerColumn);
         jp.getColumns().put(joinEmbeddedColumn.getColumnName(), joinEmbeddedColumn);
-
+        if (compact) {
+            jp.getColumnsByField().remove(jp.getIdColumn().getFieldName());
+            jp.getColumns().remove(jp.getIdColumn().getColumnName());
+            jp.setIdColumn(null);
+            jp.setPrimaryKey(List.of(joinOwnerColumn.getColumnName(), joinEmbeddedColumn.getColumnName()));
+            jp.setWithoutRowId(true);
+            jp.getIndexes().add(List.of(joinEmbeddedColumn.getColumnName(), joinOwnerColumn.getColumnName()));
+        } else
+            jp.setUniqueConstraints(List.of(customUniqueConstraint(joinOwnerColumn.getColumnName(), joinEmbeddedColumn.getColumnName())));
+        //the codecs are resolved by the replaced types
+        jp.freeze();
         buildStatements(jp);
 
         return jp;
@@ -0,0 +1,69 @@
+package com.jisj.orm;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * SQL statements of the entity table, built once per {@link EntityProfile}.
+ * The same statement text is reused by every call, so the prepared statements are found in the statement cache.
+ * A table created WITHOUT ROWID has no ID column: its statements by ID are {@code null}
+ *
+ * @param updateFieldById UPDATE of one column by ID, keyed by the field name
+ */
+public record EntityStatements(String insert,
+                               String upsert,
+                               String updateById,
+                               String readById,
+                               String selectAll,
+                               String deleteById,
+                               String existsById,
+                               String count,
+                               Map<String, String> updateFieldById) {
+
+    public static EntityStatements of(EntityProfile profile) {
+        if (profile.isWithoutRowId())
+            return new EntityStatements(StatementBuilder.buildInsertStatement(profile),
+                    StatementBuilder.buildUpsertStatement(profile),
+                    null,
+                    null,
+                    StatementBuilder.buildSelectAllStatement(profile),
+                    null,
+                    null,
+                    StatementBuilder.buildCountStatement(profile),
+                    Map.of());
+        return new EntityStatements(StatementBuilder.buildInsertStatement(profile),
+                StatementBuilder.buildUpsertStatement(profile),
+                StatementBuilder.buildUpdateByIdStatement(profile),
+                StatementBuilder.buildReadByIdStatement(profile),
+                StatementBuilder.buildSelectAllStatement(profile),
+                StatementBuilder.buildDeleteByIdStatement(profile),
+                StatementBuilder.buildExistsByIdStatement(profile),
+                StatementBuilder.buildCountStatement(profile),
+                profile.getCreateTableColumns()
+                        .filter(EntityProfile.Column::isPrimitive)
+                        .collect(Collectors.toUnmodifiableMap(EntityProfile.Column::getFieldName,
+                                column -> StatementBuilder.buildUpdateColumnByIdStatement(profile, column))));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the entity has no such persisted field
+     */
+    public String updateFieldById(String fieldName) {
+        String statement = updateFieldById.get(fieldName);
+        if (statement == null)
+            throw new IllegalArgumentException("No such field: " + fieldName);
+        return statement;
+    }
+
+    public String selectWhere(String whereClause) {
+        return selectAll + "\nWHERE " + whereClause;
+    }
+
+    /**
+     * @param whereClause WHERE clause or {@code null}
+     */
+    public String countWhere(String whereClause) {
+        if (whereClause == null || whereClause.isBlank()) return count;
+        return count + "\nWHERE " + whereClause;
+    }
+}
@@ -0,0 +1,19 @@
+package com.jisj.orm;
+
+import java.util.List;
+
+/**
+ * One page of the keyset pagination.
+ * The next page is requested by the same key columns after the {@link #nextKey()} values
+ *
+ * @param content    entities of the page ordered by the key columns
+ * @param keyColumns key columns of the ordering, the ID column is always the last one
+ * @param nextKey    key values of the last entity of the page or {@code null} if there are no more pages
+ * @param <T>        entity type
+ */
+public record Page<T>(List<T> content, String[] keyColumns, Object[] nextKey) {
+
+    public boolean hasNext() {
+        return nextKey != null;
+    }
+}
@@ -0,0 +1,175 @@
+package com.jisj.orm;
+
+import lombok.Builder;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Performance pragmas of the SQLite connections. A {@code null} value keeps the setting of the connection
+ * <pre>{@code
+ * dataSource.setPragmas(Pragmas.THROUGHPUT);
+ * dataSource.withPragmas(Pragmas.BULK_LOAD, () -> crud.addAll(rows));
+ * }</pre>
+ *
+ * @param journalMode       set by the writer connection, stored in the database file
+ * @param synchronous       flushes to the disk
+ * @param cacheSize         pages count, negative - size in KiB
+ * @param mmapSize          bytes of the database file mapped to the memory, 0 - disabled
+ * @param tempStore         location of the temporary tables and indexes
+ * @param pageSize          bytes, set by the writer connection, applied to a new database only
+ * @param busyTimeout       milliseconds to wait for a locked database
+ * @param walAutocheckpoint WAL pages count to checkpoint the WAL file, 0 - disabled
+ * @see DBDataSource#setPragmas(Pragmas)
+ */
+@Builder(toBuilder = true)
+public record Pragmas(SQLiteConfig.JournalMode journalMode,
+                      SQLiteConfig.SynchronousMode synchronous,
+                      Integer cacheSize,
+                      Long mmapSize,
+                      SQLiteConfig.TempStore tempStore,
+                      Integer pageSize,
+                      Integer busyTimeout,
+                      Integer walAutocheckpoint) {
+    /**
+     * Defaults of SQLite and of the driver, the journal mode is not changed
+     */
+    public static final Pragmas DEFAULTS = Pragmas.builder()
+            .synchronous(SQLiteConfig.SynchronousMode.FULL)
+            .cacheSize(-2000)
+            .mmapSize(0L)
+            .tempStore(SQLiteConfig.TempStore.DEFAULT)
+            .busyTimeout(3000)
+            .walAutocheckpoint(1000)
+            .build();
+    /**
+     * WAL, every commit is flushed to the disk
+     */
+    public static final Pragmas DURABLE = DEFAULTS.toBuilder()
+            .journalMode(SQLiteConfig.JournalMode.WAL)
+            .busyTimeout(5000)
+            .build();
+    /**
+     * WAL, the commits are flushed by the checkpoints: the last ones may be lost by a power failure, not by a crash
+     */
+    public static final Pragmas THROUGHPUT = DEFAULTS.toBuilder()
+            .journalMode(SQLiteConfig.JournalMode.WAL)
+            .synchronous(SQLiteConfig.SynchronousMode.NORMAL)
+            .cacheSize(-65536)
+            .mmapSize(256L * 1024 * 1024)
+            .tempStore(SQLiteConfig.TempStore.MEMORY)
+            .busyTimeout(5000)
+            .build();
+    /**
+     * Import of large data: nothing is flushed, rare checkpoints. The database may be corrupted by a crash,
+     * should be switched back when the import is done
+     * @see DBDataSource#withPragmas(Pragmas, com.jisj.orm.function.ThrowingSupplier)
+     */
+    public static final Pragmas BULK_LOAD = THROUGHPUT.toBuilder()
+            .synchronous(SQLiteConfig.SynchronousMode.OFF)
+            .cacheSize(-262144)
+            .walAutocheckpoint(10000)
+            .build();
+    private static final Map<String, Pragmas> presets = Map.of(
+            "durable", DURABLE,
+            "throughput", THROUGHPUT,
+            "bulk-load", BULK_LOAD);
+
+    public Pragmas {
+        if (pageSize != null && (pageSize < 512 || pageSize > 65536 || Integer.bitCount(pageSize) != 1))
+            throw new IllegalArgumentException("Page size should be a power of two from 512 to 65536: " + pageSize);
+        if (mmapSize != null && mmapSize < 0)
+            throw new IllegalArgumentException("Mmap size should not be negative: " + mmapSize);
+        if (busyTimeout != null && busyTimeout < 0)
+            throw new IllegalArgumentException("Busy timeout should not be negative: " + busyTimeout);
+        if (walAutocheckpoint != null && walAutocheckpoint < 0)
+            throw new IllegalArgumentException("WAL autocheckpoint should not be negative: " + walAutocheckpoint);
+    }
+
+    /**
+     * @param name durable, throughput or bulk-load
+     * @throws IllegalArgumentException if there is no such preset
+     */
+    public static Pragmas preset(String name) {
+        Pragmas pragmas = presets.get(name);
+        if (pragmas == null)
+            throw new IllegalArgumentException("No such preset: " + name + ", expected one of " + presets.keySet());
+        return pragmas;
+    }
+
+    /**
+     * @param writer the connection may change the database file: the page size and the journal mode are set
+     * @return PRAGMA statements of the not null values
+     */
+    public List<String> statements(boolean writer) {
+        List<String> statements = new ArrayList<>();
+        if (writer) {
+            //the page size of a new database is fixed by the WAL mode
+            if (pageSize != null) statements.add("PRAGMA page_size=" + pageSize);
+            if (journalMode != null) statements.add("PRAGMA journal_mode=" + journalMode.getValue());
+        }
+        if (synchronous != null) statements.add("PRAGMA synchronous=" + synchronous.getValue());
+        if (cacheSize != null) statements.add("PRAGMA cache_size=" + cacheSize);
+        if (mmapSize != null) statements.add("PRAGMA mmap_size=" + mmapSize);
+        if (tempStore != null) statements.add("PRAGMA temp_store=" + tempStore.getValue());
+        if (busyTimeout != null) statements.add("PRAGMA busy_timeout=" + busyTimeout);
+        if (walAutocheckpoint != null) statements.add("PRAGMA wal_autocheckpoint=" + walAutocheckpoint);
+        return statements;
+    }
+
+    /**
+     * Reads the values of the connection which this instance would change. The page size is not read:
+     * it is not changed back on an existing database
+     * @return pragmas switching the connection back, {@code null} where this instance keeps the setting
+     */
+    public Pragmas current(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            PragmasBuilder builder = Pragmas.builder();
+            if (journalMode != null)
+                builder.journalMode(SQLiteConfig.JournalMode.valueOf(
+                        value(statement, "journal_mode").toUpperCase(Locale.ROOT)));
+            if (synchronous != null) {
+                //EXTRA is unknown to the driver, FULL is the closest
+                int mode = Integer.parseInt(value(statement, "synchronous"));
+                builder.synchronous(SQLiteConfig.SynchronousMode.values()[Math.min(mode, 2)]);
+            }
+            if (cacheSize != null) builder.cacheSize(Integer.parseInt(value(statement, "cache_size")));
+            if (mmapSize != null) builder.mmapSize(Long.parseLong(value(statement, "mmap_size")));
+            if (tempStore != null)
+                builder.tempStore(SQLiteConfig.TempStore.values()[Integer.parseInt(value(statement, "temp_store"))]);
+            if (busyTimeout != null) builder.busyTimeout(Integer.parseInt(value(statement, "busy_timeout")));
+            if (walAutocheckpoint != null)
+                builder.walAutocheckpoint(Integer.parseInt(value(statement, "wal_autocheckpoint")));
+            return builder.build();
+        }
+    }
+
+    /**
+     * @return this instance with the {@code null} values taken from the other one
+     */
+    public Pragmas orElse(Pragmas other) {
+        Pragmas merged = new Pragmas(journalMode != null ? journalMode : other.journalMode,
+                synchronous != null ? synchronous : other.synchronous,
+                cacheSize != null ? cacheSize : other.cacheSize,
+                mmapSize != null ? mmapSize : other.mmapSize,
+                tempStore != null ? tempStore : other.tempStore,
+                pageSize != null ? pageSize : other.pageSize,
+                busyTimeout != null ? busyTimeout : other.busyTimeout,
+                walAutocheckpoint != null ? walAutocheckpoint : other.walAutocheckpoint);
+        return merged.equals(this) ? this : merged;
+    }
+
+    private static String value(Statement statement, String pragma) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA " + pragma)) {
+            if (!rs.next()) throw new SQLException("No value of PRAGMA " + pragma);
+            return rs.getString(1);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.jisj.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled mapping of a subset of the entity columns into a record, a DTO class or a partially filled entity.
+ * Built once per profile and projection, then reused for every row
+ *
+ * @param selectStatement SELECT of the projected columns without WHERE clause
+ * @param mapper          maps the current row of the result set
+ * @param <P>             projection type
+ */
+public record Projection<P>(String selectStatement, RowMapper<P> mapper) {
+
+    @FunctionalInterface
+    public interface RowMapper<P> {
+        P map(ResultSet resultSet) throws SQLException;
+    }
+
+    public String selectWhere(String whereClause) {
+        return whereClause == null || whereClause.isBlank() ? selectStatement
+                : selectStatement + "\nWHERE " + whereClause;
+    }
+
+    /**
+     * Record components or DTO fields are matched with the entity columns by the field name or by the column name.
+     * All components of a record should be matched, unmatched fields of a DTO are left unset
+     * @throws IllegalArgumentException no matched columns, no accessible constructor, unknown data type
+     */
+    public static <P> Projection<P> of(EntityProfile profile, Class<P> type) {
+        MethodHandles.Lookup lookup = lookupIn(type);
+        return type.isRecord() ? ofRecord(profile, type, lookup) : ofClass(profile, type, lookup);
+    }
+
+    /**
+     * Projection into new instances of the entity with only the specified fields filled
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Projection<T> ofEntity(EntityProfile profile, String... fieldNames) {
+        List<EntityProfile.Column> columns = Arrays.stream(fieldNames)
+                .map(fieldName -> {
+                    EntityProfile.Column column = profile.getColumnByField(fieldName);
+                    if (column == null || !column.isPrimitive())
+                        throw new IllegalArgumentException("No such field: " + fieldName);
+                    return column;
+                })
+                .toList();
+        ColumnCodec[] codecs = columns.stream().map(EntityProfile.Column::getCodec).toArray(ColumnCodec[]::new);
+        return new Projection<>(buildSelect(profile, columns), rs -> {
+            Object entity = profile.newEntityInstance();
+            for (int i = 0; i < codecs.length; i++)
+                codecs[i].read(rs, i + 1, entity);
+            return (T) entity;
+        });
+    }
+
+    private static <P> Projection<P> ofRecord(EntityProfile profile, Class<P> type, MethodHandles.Lookup lookup) {
+        RecordComponent[] components = type.getRecordComponents();
+        List<EntityProfile.Column> columns = new ArrayList<>();
+        TypeCodec<?>[] codecs = new TypeCodec<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            EntityProfile.Column column = findColumn(profile, components[i].getName());
+            if (column == null)
+                throw new IllegalArgumentException("No column for the component " + components[i].getName() + " of " + type);
+            columns.add(column);
+            codecs[i] = TypeCodecs.find(components[i].getType());
+        }
+        MethodHandle constructor;
+        try {
+            Class<?>[] parameterTypes = Arrays.stream(components).map(RecordComponent::getType).toArray(Class<?>[]::new);
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class, parameterTypes))
+                    .asSpreader(Object[].class, components.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Canonical constructor is not accessible for " + type, e);
+        }
+        return new Projection<>(buildSelect(profile, columns), rs -> {
+            Object[] values = new Object[codecs.length];
+            for (int i = 0; i < codecs.length; i++)
+                values[i] = codecs[i].read(rs, i + 1);
+            return type.cast(invoke(constructor, values));
+        });
+    }
+
+    private static <P> Projection<P> ofClass(EntityProfile profile, Class<P> type, MethodHandles.Lookup lookup) {
+        List<EntityProfile.Column> columns = new ArrayList<>();
+        List<ColumnCodec> codecs = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) continue;
+                EntityProfile.Column column = findColumn(profile, field.getName());
+                if (column == null) continue;
+                try {
+                    MethodHandles.Lookup fieldLookup = c == type ? lookup : lookupIn(c);
+                    codecs.add(ColumnCodec.of(field.getType(), fieldLookup.unreflectGetter(field), fieldLookup.unreflectSetter(field)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("No access to the field " + field, e);
+                }
+                columns.add(column);
+            }
+        }
+        if (columns.isEmpty())
+            throw new IllegalArgumentException("No columns of " + profile.getTableName() + " found in " + type);
+        MethodHandle constructor;
+        try {
+            Constructor<P> noArgs = type.getDeclaredConstructor();
+            constructor = lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("NoArgs constructor is not accessible for " + type, e);
+        }
+        ColumnCodec[] columnCodecs = codecs.toArray(ColumnCodec[]::new);
+        return new Projection<>(buildSelect(profile, columns), rs -> {
+            Object dto = invoke(constructor);
+            for (int i = 0; i < columnCodecs.length; i++)
+                columnCodecs[i].read(rs, i + 1, dto);
+            return type.cast(dto);
+        });
+    }
+
+    private static EntityProfile.Column findColumn(EntityProfile profile, String name) {
+        EntityProfile.Column column = profile.getColumnByField(name);
+        if (column == null) column = profile.getColumn(name);
+        return column != null && column.isPrimitive() ? column : null;
+    }
+
+    private static String buildSelect(EntityProfile profile, List<EntityProfile.Column> columns) {
+        return "SELECT " + String.join(",", columns.stream().map(EntityProfile.Column::getColumnName).toList()) +
+                " FROM " + profile.getTableName();
+    }
+
+    private static MethodHandles.Lookup lookupIn(Class<?> type) {
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("No access to " + type, e);
+        }
+    }
+
+    private static Object invoke(MethodHandle constructor, Object... args) {
+        try {
+            return args.length == 0 ? (Object) constructor.invokeExact() : (Object) constructor.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
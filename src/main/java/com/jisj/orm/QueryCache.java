@@ -0,0 +1,191 @@
+package com.jisj.orm;
+
+import com.jisj.orm.function.ThrowingSupplier;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the query results by the SQL text and the bound arguments, shared by the DAO of several tables.
+ * A result depends on the table of its DAO and on every known table named in the SQL.
+ * A write to a table makes stale the results of this table and of the tables referencing it by a foreign key,
+ * since their rows are deleted by the cascade. The rows are copied on put and on read
+ *
+ * @see DAOImpl#setQueryCache(QueryCache)
+ */
+public class QueryCache {
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+    private final int maxEntries;
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //write counters by the lower case table name, a result is valid while the counters of its tables are unchanged
+    private final Map<String, Long> versions = new HashMap<>();
+    //tables referencing the table by a foreign key
+    private final Map<String, Set<String>> referencing = new HashMap<>();
+    private final Stats stats = new Stats();
+
+    private record Entry(EntityProfile profile, List<Object> rows, Map<String, Long> versions) {
+    }
+
+    /**
+     * @param maxEntries results count, the least recently used are evicted
+     */
+    public QueryCache(int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Cache size should be positive: " + maxEntries);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Makes the table known to the cache with its foreign keys
+     */
+    public synchronized void register(EntityProfile profile) {
+        String table = key(profile.getTableName());
+        versions.putIfAbsent(table, 0L);
+        for (EntityProfile.ForeignKey foreignKey : profile.getForeignKeys()) {
+            String referenced = key(foreignKey.referenceTable());
+            versions.putIfAbsent(referenced, 0L);
+            referencing.computeIfAbsent(referenced, ignore -> new HashSet<>()).add(table);
+        }
+    }
+
+    /**
+     * Returns the cached result or performs the query and caches its result.
+     * A result read while its tables were written is returned but not used by the next calls
+     * @param profile entities of the result
+     * @param sql     query statement
+     * @param args    bound arguments
+     * @param query   reads the result
+     * @return copy of the result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> computeIfAbsent(EntityProfile profile, String sql, Object[] args,
+                                       ThrowingSupplier<List<T>, SQLException> query) throws SQLException {
+        List<Object> key = new ArrayList<>(args.length + 1);
+        key.add(sql);
+        key.addAll(Arrays.asList(args));
+        Map<String, Long> snapshot;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.profile == profile && entry.versions.equals(currentVersions(entry.versions.keySet()))) {
+                stats.hits.increment();
+                return (List<T>) copy(profile, entry.rows);
+            }
+            if (entry != null) entries.remove(key);
+            stats.misses.increment();
+            snapshot = currentVersions(tablesOf(profile, sql));
+        }
+        List<T> result = query.get();
+        List<Object> rows = copy(profile, result);
+        synchronized (this) {
+            if (snapshot.equals(currentVersions(snapshot.keySet()))) {
+                entries.put(key, new Entry(profile, rows, snapshot));
+                Iterator<Map.Entry<List<Object>, Entry>> eldest = entries.entrySet().iterator();
+                while (entries.size() > maxEntries) {
+                    eldest.next();
+                    eldest.remove();
+                    stats.evictions.increment();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes stale the results depending on the table or on the tables referencing it
+     */
+    public synchronized void invalidate(String tableName) {
+        stats.invalidations.increment();
+        Deque<String> tables = new ArrayDeque<>(List.of(key(tableName)));
+        Set<String> visited = new HashSet<>();
+        while (!tables.isEmpty()) {
+            String table = tables.poll();
+            if (!visited.add(table)) continue;
+            versions.merge(table, 1L, Long::sum);
+            tables.addAll(referencing.getOrDefault(table, Set.of()));
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        stats.invalidations.increment();
+        versions.replaceAll((table, version) -> version + 1);
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private Set<String> tablesOf(EntityProfile profile, String sql) {
+        Set<String> tables = new HashSet<>();
+        tables.add(key(profile.getTableName()));
+        Matcher matcher = IDENTIFIER.matcher(sql);
+        while (matcher.find()) {
+            String word = key(matcher.group());
+            if (versions.containsKey(word)) tables.add(word);
+        }
+        return tables;
+    }
+
+    private Map<String, Long> currentVersions(Set<String> tables) {
+        Map<String, Long> current = new HashMap<>();
+        for (String table : tables) current.put(table, versions.getOrDefault(table, 0L));
+        return current;
+    }
+
+    private static List<Object> copy(EntityProfile profile, List<?> rows) {
+        List<Object> copy = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            Object instance = profile.newEntityInstance();
+            profile.copy(row, instance);
+            copy.add(instance);
+        }
+        return copy;
+    }
+
+    private static String key(String tableName) {
+        return tableName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Usage counters of the query cache
+     */
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public long getInvalidations() {
+            return invalidations.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "QueryCache.Stats{" +
+                    "hits=" + getHits() +
+                    ", misses=" + getMisses() +
+                    ", evictions=" + getEvictions() +
+                    ", invalidations=" + getInvalidations() +
+                    '}';
+        }
+    }
+}
@@ -13,7 +13,8 @@ public class SQLiteDialect extends Dialect{
                  "java.lang.Boolean", "boolean" -> "INTEGER";
             case "java.lang.Double", "double",
                  "java.lang.Float", "float"     -> "REAL";
-            default -> throw new IllegalArgumentException("Unexpected value: " + javaTypeName);
+            default -> TypeCodecs.findDataType(javaTypeName)
+                    .orElseThrow(() -> new IllegalArgumentException("Unexpected value: " + javaTypeName));
         };
     }
 }
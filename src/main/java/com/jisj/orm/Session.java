@@ -0,0 +1,141 @@
+package com.jisj.orm;
+
+import com.jisj.orm.function.ThrowingSupplier;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * First-level identity map bound to the current thread. While the session is open the repositories return
+ * one canonical instance per entity class and ID, and the entities found in the session are not read again.
+ * <pre>{@code
+ * try (Session session = Session.open()) {
+ *     MainEntity first = crud.get(1);
+ *     assert first == crud.get(1);
+ * }
+ * }</pre>
+ * The session is not a transaction: the changes made by other sessions are not seen by the cached instances
+ *
+ * @see #inSession(ThrowingSupplier)
+ */
+public class Session implements AutoCloseable {
+    private static final ThreadLocal<Session> current = new ThreadLocal<>();
+    private final Map<Class<?>, Map<Object, Object>> entities = new HashMap<>();
+    //entities with loaded embedded collections
+    private final Map<Class<?>, Set<Object>> loaded = new HashMap<>();
+
+    private Session() {
+    }
+
+    /**
+     * Opens new session and binds it to the current thread
+     * @return session, should be closed
+     * @throws IllegalStateException when the thread already has a session
+     */
+    public static Session open() {
+        if (current.get() != null)
+            throw new IllegalStateException("Session already opened in " + Thread.currentThread());
+        Session session = new Session();
+        current.set(session);
+        return session;
+    }
+
+    /**
+     * @return session of the current thread
+     */
+    public static Optional<Session> current() {
+        return Optional.ofNullable(current.get());
+    }
+
+    /**
+     * Performs the work in a session. If the thread already has a session the work joins it
+     */
+    public static <R, E extends Exception> R inSession(ThrowingSupplier<R, E> work) throws E {
+        if (current.get() != null) return work.get();
+        Session session = open();
+        try {
+            return work.get();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return canonical instance or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T find(Class<?> entityClass, Object id) {
+        Map<Object, Object> byId = entities.get(entityClass);
+        return byId == null ? null : (T) byId.get(id);
+    }
+
+    /**
+     * Registers the entity if its ID is not known yet
+     * @return canonical instance of the entity ID
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T register(EntityProfile profile, T entity) {
+        Object id = profile.getIdValue(entity);
+        if (id == null) return entity;
+        Object found = entities.computeIfAbsent(profile.getEntityClass(), type -> new HashMap<>()).putIfAbsent(id, entity);
+        return found == null ? entity : (T) found;
+    }
+
+    /**
+     * Makes the written entity canonical for its ID
+     */
+    public void put(EntityProfile profile, Object entity) {
+        Object id = profile.getIdValue(entity);
+        if (id == null) return;
+        Object previous = entities.computeIfAbsent(profile.getEntityClass(), type -> new HashMap<>()).put(id, entity);
+        if (previous != entity) resetLoaded(profile.getEntityClass(), id);
+    }
+
+    public void evict(Class<?> entityClass, Object id) {
+        Map<Object, Object> byId = entities.get(entityClass);
+        if (byId != null) byId.remove(id);
+        resetLoaded(entityClass, id);
+    }
+
+    public void evictAll(Class<?> entityClass) {
+        entities.remove(entityClass);
+        loaded.remove(entityClass);
+    }
+
+    /**
+     * Marks the embedded collections of the entity as loaded
+     */
+    public void markLoaded(Class<?> entityClass, Object id) {
+        loaded.computeIfAbsent(entityClass, type -> new HashSet<>()).add(id);
+    }
+
+    /**
+     * The embedded collections of the entity will be read again by the next load
+     */
+    public void resetLoaded(Class<?> entityClass, Object id) {
+        Set<Object> ids = loaded.get(entityClass);
+        if (ids != null) ids.remove(id);
+    }
+
+    public boolean isLoaded(Class<?> entityClass, Object id) {
+        Set<Object> ids = loaded.get(entityClass);
+        return ids != null && ids.contains(id);
+    }
+
+    public void clear() {
+        entities.clear();
+        loaded.clear();
+    }
+
+    /**
+     * Clears the identity map and unbinds the session from the thread
+     */
+    @Override
+    public void close() {
+        clear();
+        if (current.get() == this) current.remove();
+    }
+}
@@ -2,6 +2,7 @@ package com.jisj.orm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -31,6 +32,114 @@ public class StatementBuilder {
                 "=?";
     }
 
+    public static String buildUpdateColumnByIdStatement(EntityProfile profile, EntityProfile.Column column) {
+        return "UPDATE " + profile.getTableName() +
+                " SET " + column.getColumnName() + "=?" +
+                "\nWHERE " + profile.getIdColumn().getColumnName() + "=?";
+    }
+
+    public static String buildSelectAllStatement(EntityProfile profile) {
+        return "SELECT * FROM " + profile.getTableName();
+    }
+
+    public static String buildReadByIdStatement(EntityProfile profile) {
+        return buildSelectAllStatement(profile) +
+                "\nWHERE " + profile.getIdColumn().getColumnName() + "=?";
+    }
+
+    public static String buildDeleteByIdStatement(EntityProfile profile) {
+        return "DELETE FROM " + profile.getTableName() +
+                "\nWHERE " + profile.getIdColumn().getColumnName() + "=?";
+    }
+
+    /**
+     * {@code INSERT INTO join_table (owner,embedded) VALUES (?,?) ON CONFLICT(owner,embedded) DO NOTHING}:
+     * an existing link is skipped by the database, the other constraint violations fail
+     */
+    public static String buildJoinInsertStatement(EntityProfile joinProfile) {
+        String columns = joinProfile.getColumnByField("ownerId").getColumnName() + "," +
+                joinProfile.getColumnByField("embeddedId").getColumnName();
+        return "INSERT INTO " + joinProfile.getTableName() + " (" + columns + ") VALUES (?,?)" +
+                "\nON CONFLICT(" + columns + ") DO NOTHING";
+    }
+
+    /**
+     * {@code DELETE FROM join_table WHERE owner=? AND embedded=?}
+     */
+    public static String buildJoinDeleteStatement(EntityProfile joinProfile) {
+        return "DELETE FROM " + joinProfile.getTableName() +
+                "\nWHERE " + joinProfile.getColumnByField("ownerId").getColumnName() + "=? AND " +
+                joinProfile.getColumnByField("embeddedId").getColumnName() + "=?";
+    }
+
+    public static String buildExistsByIdStatement(EntityProfile profile) {
+        return buildExistsStatement(profile, profile.getIdColumn().getColumnName() + "=?");
+    }
+
+    /**
+     * @param whereClause WHERE clause or {@code null}
+     */
+    public static String buildExistsStatement(EntityProfile profile, String whereClause) {
+        return "SELECT EXISTS(SELECT 1 FROM " + profile.getTableName() +
+                (whereClause == null || whereClause.isBlank() ? "" : " WHERE " + whereClause) + ")";
+    }
+
+    public static String buildCountStatement(EntityProfile profile) {
+        return "SELECT COUNT(*) FROM " + profile.getTableName();
+    }
+
+    /**
+     * Keyset page query: {@code SELECT * FROM t WHERE (k1,k2)>(?,?) ORDER BY k1,k2 LIMIT ?}
+     * @param afterKey true if the page starts after the key values, false for the first page
+     */
+    public static String buildKeysetPageStatement(EntityProfile profile, List<EntityProfile.Column> keyColumns, boolean afterKey) {
+        String columns = keyColumns.stream()
+                .map(EntityProfile.Column::getColumnName)
+                .collect(Collectors.joining(","));
+        StringBuilder builder = new StringBuilder(buildSelectAllStatement(profile));
+        if (afterKey) {
+            builder.append("\nWHERE ");
+            if (keyColumns.size() == 1) builder.append(columns).append(">?");
+            else builder.append('(').append(columns).append(")>(")
+                    .append(String.join(",", Collections.nCopies(keyColumns.size(), "?")))
+                    .append(')');
+        }
+        builder.append("\nORDER BY ").append(columns)
+                .append("\nLIMIT ?");
+        return builder.toString();
+    }
+
+    /**
+     * @param whereClause WHERE clause or {@code null}
+     */
+    public static String buildAggregateStatement(EntityProfile profile, Aggregate function, String columnName, String whereClause) {
+        return "SELECT " + function.name() + "(" + columnName + ") FROM " + profile.getTableName() +
+                (whereClause == null || whereClause.isBlank() ? "" : "\nWHERE " + whereClause);
+    }
+
+    /**
+     * @param whereClause WHERE clause or {@code null}
+     */
+    public static String buildGroupByStatement(EntityProfile profile, String groupColumn, Aggregate function,
+                                               String columnName, String whereClause) {
+        return "SELECT " + groupColumn + "," + function.name() + "(" + columnName + ") FROM " + profile.getTableName() +
+                (whereClause == null || whereClause.isBlank() ? "" : "\nWHERE " + whereClause) +
+                "\nGROUP BY " + groupColumn +
+                "\nORDER BY " + groupColumn;
+    }
+
+    /**
+     * {@code SELECT t.*,j.owner FROM t JOIN join_table j ON t.id=j.embedded}: the entity columns are followed by the owner ID.
+     * The join records are filtered by the owner column {@code j.owner}
+     * @param profile     profile of the embedded entities
+     * @param joinProfile profile of the join table
+     */
+    public static String buildJoinFetchStatement(EntityProfile profile, EntityProfile joinProfile) {
+        return "SELECT t.*,j." + joinProfile.getColumnByField("ownerId").getColumnName() + " FROM " + profile.getTableName() + " t" +
+                "\nJOIN " + joinProfile.getTableName() + " j ON t." + profile.getIdColumn().getColumnName() +
+                "=j." + joinProfile.getColumnByField("embeddedId").getColumnName();
+    }
+
     public static String buildInsertStatement(EntityProfile profile) {
         StringBuilder builder = new StringBuilder("INSERT INTO ");
         builder.append(profile.getTableName());
@@ -48,6 +157,25 @@ public class StatementBuilder {
         return builder.toString();
     }
 
+    /**
+     * INSERT of the insertable columns which updates the updatable columns if the ID already exists,
+     * the composite primary key is used if the table has one
+     * @see <a href=https://www.sqlite.org/lang_upsert.html>SQLite UPSERT</a>
+     */
+    public static String buildUpsertStatement(EntityProfile profile) {
+        List<String> keyColumns = profile.getPrimaryKey().isEmpty()
+                ? List.of(profile.getIdColumn().getColumnName())
+                : profile.getPrimaryKey();
+        String updates = profile.getUpdatablePrimitiveColumns()
+                .map(EntityProfile.Column::getColumnName)
+                .filter(columnName -> !keyColumns.contains(columnName))
+                .map(columnName -> columnName + "=excluded." + columnName)
+                .collect(Collectors.joining(","));
+        return buildInsertStatement(profile) +
+                "\nON CONFLICT(" + String.join(",", keyColumns) + ") DO " +
+                (updates.isEmpty() ? "NOTHING" : "UPDATE SET " + updates);
+    }
+
     /**
      * @see <a href=https://www.sqlite.org/lang_createtable.html>SQLite CREATE</a>
      */
@@ -61,6 +189,10 @@ public class StatementBuilder {
                                 .map(StatementBuilder::inQuotes)
                                 .collect(Collectors.joining(","))
                         + ")"));
+        if (!profile.getPrimaryKey().isEmpty())
+            statement.add("PRIMARY KEY(" + profile.getPrimaryKey().stream()
+                    .map(StatementBuilder::inQuotes)
+                    .collect(Collectors.joining(",")) + ")");
         profile.getForeignKeys().forEach(fk -> statement.add(
                 "FOREIGN KEY (" + Arrays.stream(fk.columns())
                         .map(StatementBuilder::inQuotes).collect(Collectors.joining(",")) +
@@ -68,7 +200,19 @@ public class StatementBuilder {
                         .map(StatementBuilder::inQuotes).collect(Collectors.joining(",")) + ")"
                         + " ON DELETE CASCADE")
         );
-        return header + "(\n" + String.join(",\n", statement) + "\n)";
+        return header + "(\n" + String.join(",\n", statement) + "\n)" + (profile.isWithoutRowId() ? " WITHOUT ROWID" : "");
+    }
+
+    /**
+     * {@code CREATE INDEX table_col1_col2 ON table (col1,col2)} for each secondary index of the profile
+     */
+    public static List<String> buildCreateIndexStatements(EntityProfile profile, boolean ifNotExists) {
+        return profile.getIndexes().stream()
+                .map(columns -> "CREATE INDEX " + (ifNotExists ? "IF NOT EXISTS " : "") +
+                        profile.getTableName() + "_" + String.join("_", columns) +
+                        " ON " + profile.getTableName() + " (" +
+                        columns.stream().map(StatementBuilder::inQuotes).collect(Collectors.joining(",")) + ")")
+                .toList();
     }
 
     public static String buildDropTableStatement(EntityProfile profile, boolean ifExists) {
@@ -0,0 +1,144 @@
+package com.jisj.orm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Unit of work over one connection. While the transaction is open the connection is bound to the current thread:
+ * every DAO and repository call of the {@link DBDataSource} on this thread uses it and nothing is committed
+ * until {@link #commit()}.
+ * <pre>{@code
+ * try (Transaction tx = dataSource.beginTransaction()) {
+ *     persistRepository.save(entity);
+ *     tx.commit();
+ * }
+ * }</pre>
+ *
+ * @see DBDataSource#beginTransaction()
+ * @see DBEnvironment#inTransaction(com.jisj.orm.function.ThrowingSupplier)
+ */
+public class Transaction implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(Transaction.class.getName());
+    private final DBDataSource owner;
+    private final Connection connection;
+    private final Connection boundConnection;
+    private boolean completed = false;
+    private boolean committed = false;
+    private final List<Runnable> afterCompletion = new ArrayList<>();
+
+    Transaction(DBDataSource owner, Connection connection) throws SQLException {
+        this.owner = owner;
+        this.connection = connection;
+        this.boundConnection = unclosable(connection);
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * @return the connection shared by all calls inside the transaction. Closing of it is ignored
+     */
+    public Connection getConnection() {
+        return boundConnection;
+    }
+
+    /**
+     * Registers an action performed when the transaction is closed, after the commit or the rollback
+     */
+    public void afterCompletion(Runnable action) {
+        afterCompletion.add(action);
+    }
+
+    public boolean isActive() {
+        return !completed;
+    }
+
+    /**
+     * @return true if the changes are committed, false while the transaction is active or after the rollback
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Commits all changes and ends the transaction
+     */
+    public void commit() throws SQLException {
+        assertActive();
+        connection.commit();
+        completed = true;
+        committed = true;
+        log.fine("Transaction committed");
+    }
+
+    /**
+     * Discards all changes and ends the transaction
+     */
+    public void rollback() throws SQLException {
+        assertActive();
+        connection.rollback();
+        completed = true;
+        log.fine("Transaction rolled back");
+    }
+
+    /**
+     * Rolls back the transaction if it was not committed, unbinds it from the thread and releases the connection.
+     * The completion actions are performed anyway, even if the connection fails
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (!completed) rollback();
+            connection.setAutoCommit(true);
+        } finally {
+            try {
+                owner.unbind(this);
+                connection.close();
+            } finally {
+                runAfterCompletion();
+            }
+        }
+    }
+
+    /**
+     * Performs every action, the first failure is thrown with the next ones suppressed
+     */
+    private void runAfterCompletion() {
+        RuntimeException failure = null;
+        for (Runnable action : afterCompletion) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void assertActive() {
+        if (completed)
+            throw new IllegalStateException("Transaction already completed");
+    }
+
+    private static Connection unclosable(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "close" -> null;
+                    case "isClosed" -> connection.isClosed();
+                    case "unwrap" -> connection.unwrap((Class<?>) args[0]);
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> {
+                        try {
+                            yield method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,30 @@
+package com.jisj.orm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads and binds the values of one java type.
+ * Codecs of the standard types are built in, the other types are added by {@link TypeCodecs#register(Class, TypeCodec)}
+ * @param <V> java type of the value
+ */
+public interface TypeCodec<V> {
+    /**
+     * @return value of the column of the current row
+     */
+    V read(ResultSet resultSet, int columnIndex) throws SQLException;
+
+    /**
+     * Binds the parameter, NULL values are bound by the caller
+     * @param value not null value
+     */
+    void bind(PreparedStatement ps, int parameterIndex, V value) throws SQLException;
+
+    /**
+     * @return column data type for the CREATE TABLE statement or empty string if the dialect knows the type
+     */
+    default String getDataType() {
+        return "";
+    }
+}
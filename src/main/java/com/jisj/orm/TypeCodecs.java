@@ -0,0 +1,133 @@
+package com.jisj.orm;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link TypeCodec} by java type.
+ * NULL columns are read into the numeric types as 0, as JDBC getters do
+ */
+public final class TypeCodecs {
+    private static final Map<Class<?>, TypeCodec<?>> codecs = new ConcurrentHashMap<>();
+    //codecs found for the runtime classes of the bound values, cleared on registration
+    private static final Map<Class<?>, TypeCodec<?>> valueCodecs = new ConcurrentHashMap<>();
+
+    static {
+        TypeCodec<Integer> integerCodec = codec(ResultSet::getInt, PreparedStatement::setInt);
+        TypeCodec<Long> longCodec = codec(ResultSet::getLong, PreparedStatement::setLong);
+        TypeCodec<Double> doubleCodec = codec(ResultSet::getDouble, PreparedStatement::setDouble);
+        TypeCodec<Float> floatCodec = codec(ResultSet::getFloat, PreparedStatement::setFloat);
+        TypeCodec<Boolean> booleanCodec = codec(ResultSet::getBoolean, PreparedStatement::setBoolean);
+        codecs.put(Integer.class, integerCodec);
+        codecs.put(int.class, integerCodec);
+        codecs.put(Long.class, longCodec);
+        codecs.put(long.class, longCodec);
+        codecs.put(Double.class, doubleCodec);
+        codecs.put(double.class, doubleCodec);
+        codecs.put(Float.class, floatCodec);
+        codecs.put(float.class, floatCodec);
+        codecs.put(Boolean.class, booleanCodec);
+        codecs.put(boolean.class, booleanCodec);
+        codecs.put(String.class, codec(ResultSet::getString, PreparedStatement::setString));
+        codecs.put(Array.class, codec(ResultSet::getArray, PreparedStatement::setArray));
+    }
+
+    private TypeCodecs() {
+    }
+
+    /**
+     * Adds or replaces the codec of the type. Profiles resolve their column codecs when they are built,
+     * so the codecs should be registered before the entities are initialized
+     */
+    public static <V> void register(Class<V> type, TypeCodec<V> codec) {
+        codecs.put(type, codec);
+        valueCodecs.clear();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the type has no codec
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> TypeCodec<V> find(Class<V> type) {
+        TypeCodec<?> codec = codecs.get(type);
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown data type: " + type);
+        return (TypeCodec<V>) codec;
+    }
+
+    /**
+     * Finds the codec by the runtime class of the value, else by the nearest superclass,
+     * else by the interfaces of the class and its superclasses, breadth first in the declaration order
+     * @throws IllegalStateException if the value type has no codec
+     */
+    @SuppressWarnings("unchecked")
+    public static TypeCodec<Object> forValue(Object value) {
+        TypeCodec<?> codec = valueCodecs.computeIfAbsent(value.getClass(), TypeCodecs::lookup);
+        if (codec == null)
+            throw new IllegalStateException("Unexpected value type: " + value.getClass().getTypeName());
+        return (TypeCodec<Object>) codec;
+    }
+
+    private static TypeCodec<?> lookup(Class<?> type) {
+        Deque<Class<?>> interfaces = new ArrayDeque<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            TypeCodec<?> codec = codecs.get(current);
+            if (codec != null) return codec;
+            interfaces.addAll(List.of(current.getInterfaces()));
+        }
+        Set<Class<?>> visited = new HashSet<>();
+        while (!interfaces.isEmpty()) {
+            Class<?> current = interfaces.pollFirst();
+            if (!visited.add(current)) continue;
+            TypeCodec<?> codec = codecs.get(current);
+            if (codec != null) return codec;
+            interfaces.addAll(List.of(current.getInterfaces()));
+        }
+        return null;
+    }
+
+    /**
+     * @return data type declared by the registered codec of the type
+     */
+    public static Optional<String> findDataType(String javaTypeName) {
+        return codecs.entrySet().stream()
+                .filter(entry -> entry.getKey().getName().equals(javaTypeName))
+                .map(entry -> entry.getValue().getDataType())
+                .filter(dataType -> !dataType.isEmpty())
+                .findFirst();
+    }
+
+    private static <V> TypeCodec<V> codec(Reader<V> reader, Binder<V> binder) {
+        return new TypeCodec<>() {
+            @Override
+            public V read(ResultSet resultSet, int columnIndex) throws SQLException {
+                return reader.read(resultSet, columnIndex);
+            }
+
+            @Override
+            public void bind(PreparedStatement ps, int parameterIndex, V value) throws SQLException {
+                binder.bind(ps, parameterIndex, value);
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface Reader<V> {
+        V read(ResultSet resultSet, int columnIndex) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface Binder<V> {
+        void bind(PreparedStatement ps, int parameterIndex, V value) throws SQLException;
+    }
+}
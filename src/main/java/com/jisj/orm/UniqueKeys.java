@@ -0,0 +1,174 @@
+package com.jisj.orm;
+
+import jakarta.persistence.UniqueConstraint;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keys which identify a stored record of the entity: the ID, unique columns and unique constraints, in this priority.
+ * Builds the lookup statements of a record by any of its keys. A key takes part in the lookup only if all its values are not null
+ */
+public class UniqueKeys {
+    private final EntityProfile profile;
+    private final List<List<EntityProfile.Column>> keys = new ArrayList<>();
+    //lookup statements by the mask of the used keys
+    private final Map<Integer, String> statements = new ConcurrentHashMap<>();
+
+    public UniqueKeys(EntityProfile profile) {
+        this.profile = profile;
+        if (profile.getIdColumn() != null) keys.add(List.of(profile.getIdColumn()));
+        profile.getUniquePrimitiveColumns()
+                .filter(column -> !column.isId())
+                .forEach(column -> keys.add(List.of(column)));
+        for (UniqueConstraint constraint : profile.getUniqueConstraints()) {
+            keys.add(Arrays.stream(constraint.columnNames())
+                    .map(columnName -> {
+                        EntityProfile.Column column = profile.getColumn(columnName);
+                        if (column == null) column = profile.getColumnByField(columnName);
+                        if (column == null)
+                            throw new IllegalArgumentException("No column of the unique constraint: " + columnName);
+                        return column;
+                    })
+                    .toList());
+        }
+        if (keys.size() > Integer.SIZE - 1)
+            throw new IllegalArgumentException("Too many unique keys of " + profile.getTableName());
+    }
+
+    /**
+     * @return bit mask of the keys with all values not null
+     */
+    public int mask(Object entity) {
+        int mask = 0;
+        for (int i = 0; i < keys.size(); i++)
+            if (keyValues(i, entity) != null) mask |= 1 << i;
+        return mask;
+    }
+
+    /**
+     * {@code SELECT * FROM t WHERE id=? OR u=? OR (a=? AND b=?)}, the keys may match several records:
+     * all of them are read and {@link #choose(Object, Collection)} takes the match of the highest priority
+     * @param mask keys of the lookup, not 0
+     */
+    public String lookupStatement(int mask) {
+        return statements.computeIfAbsent(mask, m -> StatementBuilder.buildSelectAllStatement(profile) +
+                "\nWHERE " + usedKeys(m).stream()
+                .map(key -> {
+                    String condition = key.stream()
+                            .map(column -> column.getColumnName() + "=?")
+                            .collect(Collectors.joining(" AND "));
+                    return key.size() == 1 ? condition : "(" + condition + ")";
+                })
+                .collect(Collectors.joining(" OR ")));
+    }
+
+    public List<Object> lookupArgs(int mask, Object entity) {
+        List<Object> args = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++)
+            if ((mask & 1 << i) != 0) args.addAll(keyValues(i, entity));
+        return args;
+    }
+
+    /**
+     * One statement for the entity list: {@code WHERE id IN (?,?) OR (a,b) IN (VALUES (?,?),(?,?))}
+     * @param args receives the parameters of the statement
+     * @return statement or {@code null} if no entity has a key
+     */
+    public String bulkLookupStatement(List<?> entities, List<Object> args) {
+        List<String> conditions = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            List<EntityProfile.Column> key = keys.get(i);
+            Set<List<Object>> tuples = new LinkedHashSet<>();
+            for (Object entity : entities) {
+                List<Object> values = keyValues(i, entity);
+                if (values != null) tuples.add(values);
+            }
+            if (tuples.isEmpty()) continue;
+            tuples.forEach(args::addAll);
+            String placeholders = "(" + String.join(",", Collections.nCopies(key.size(), "?")) + ")";
+            if (key.size() == 1)
+                conditions.add(key.getFirst().getColumnName() + " IN (" +
+                        String.join(",", Collections.nCopies(tuples.size(), "?")) + ")");
+            else conditions.add("(" + key.stream().map(EntityProfile.Column::getColumnName).collect(Collectors.joining(",")) +
+                    ") IN (VALUES " + String.join(",", Collections.nCopies(tuples.size(), placeholders)) + ")");
+        }
+        if (conditions.isEmpty()) return null;
+        return StatementBuilder.buildSelectAllStatement(profile) + "\nWHERE " + String.join(" OR ", conditions);
+    }
+
+    /**
+     * Chooses the stored record matching the entity by the key of the highest priority
+     * @param stored candidates found by the lookup
+     */
+    public <T> Optional<T> choose(Object entity, Collection<T> stored) {
+        return chooseAll(List.of(entity), stored).getFirst();
+    }
+
+    /**
+     * @param stored candidates found by the bulk lookup
+     * @return matched records in the order of the entities
+     */
+    public <T> List<Optional<T>> chooseAll(List<?> entities, Collection<T> stored) {
+        List<Map<List<Object>, T>> index = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Map<List<Object>, T> byValues = new HashMap<>();
+            for (T candidate : stored) {
+                List<Object> values = keyValues(i, candidate);
+                if (values != null) byValues.putIfAbsent(values, candidate);
+            }
+            index.add(byValues);
+        }
+        List<Optional<T>> result = new ArrayList<>(entities.size());
+        for (Object entity : entities) {
+            T found = null;
+            for (int i = 0; i < keys.size() && found == null; i++) {
+                List<Object> values = keyValues(i, entity);
+                if (values != null) found = index.get(i).get(values);
+            }
+            result.add(Optional.ofNullable(found));
+        }
+        return result;
+    }
+
+    /**
+     * Splits the entities into the ones which may be written by one batch and the ones sharing a key
+     * with an earlier entity of the list
+     * @param postponed receives the entities sharing a key, in their order
+     * @return entities without the shared keys, in their order
+     */
+    public <T> List<T> distinct(List<T> entities, List<T> postponed) {
+        List<T> distinct = new ArrayList<>(entities.size());
+        Set<List<Object>> seen = new HashSet<>();
+        for (T entity : entities) {
+            boolean shared = false;
+            for (int i = 0; i < keys.size(); i++) {
+                List<Object> values = keyValues(i, entity);
+                if (values != null && !seen.add(List.of(i, values))) shared = true;
+            }
+            (shared ? postponed : distinct).add(entity);
+        }
+        return distinct;
+    }
+
+    /**
+     * @return key values or {@code null} if any of them is null
+     */
+    private List<Object> keyValues(int key, Object entity) {
+        List<EntityProfile.Column> columns = keys.get(key);
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = columns.get(i).getValue(entity);
+            if (values[i] == null) return null;
+        }
+        return Arrays.asList(values);
+    }
+
+    private List<List<EntityProfile.Column>> usedKeys(int mask) {
+        List<List<EntityProfile.Column>> used = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++)
+            if ((mask & 1 << i) != 0) used.add(keys.get(i));
+        return used;
+    }
+}
@@ -0,0 +1,507 @@
+package com.jisj.orm.jdbc;
+
+import com.jisj.orm.function.ThrowingSupplier;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Pool of SQLite connections: a fixed set of read-only connections and one writer connection.
+ * SQLite allows one writer at a time, so the writers wait for the connection in a fair queue instead of failing
+ * with {@code SQLITE_BUSY}. The writer is reentrant: the thread holding it gets the same connection again.
+ * A pool without read connections leases the writer connection for the reads as well. Such a read lease may be closed
+ * by any thread, it is reentrant too: the thread which took it gets the same connection for the nested reads and writes.
+ * <p>
+ * The connections are opened on demand, wrapped by the {@link StatementCache} and kept until the pool is closed.
+ * Closing of a leased connection returns it to the pool, a connection left in a transaction is rolled back.
+ * The writer connection should be closed by the thread which got it
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(ConnectionPool.class.getName());
+    private final ThrowingSupplier<Connection, SQLException> factory;
+    private final int readerCount;
+    private final Duration timeout;
+    private final int statementCacheSize;
+    private final StatementCache.Stats statementCacheStats;
+    private final Semaphore readPermits;
+    private final ConcurrentLinkedDeque<Connection> idleReaders = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger activeReaders = new AtomicInteger();
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    //the writer connection is leased either to the writerLock holder or for a read, if there are no read connections
+    private final Semaphore writerPermit = new Semaphore(1, true);
+    //guarded by writerPermit
+    private Connection writer;
+    //the thread which took the writer for a read and the count of the open leases joining that read
+    private volatile Thread readLeaseOwner;
+    private final AtomicInteger readLeases = new AtomicInteger();
+    private final Set<Connection> opened = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+    private final Stats stats = new Stats();
+    private volatile Configurer configurer;
+    private final AtomicLong configuration = new AtomicLong();
+    //configuration applied to the connection
+    private final Map<Connection, Long> configured = new ConcurrentHashMap<>();
+
+    /**
+     * Applies the settings to a connection of the pool
+     */
+    @FunctionalInterface
+    public interface Configurer {
+        /**
+         * @param writer the writer connection, the others are read-only
+         */
+        void configure(Connection connection, boolean writer) throws SQLException;
+    }
+
+    /**
+     * @param factory             opens a physical connection with the configured pragmas
+     * @param readerCount         read-only connections count, 0 - the reads use the writer
+     * @param timeout             max time to wait for a connection
+     * @param statementCacheSize  prepared statements cached by each connection, 0 - disabled
+     * @param statementCacheStats counters of the statement caches
+     */
+    public ConnectionPool(ThrowingSupplier<Connection, SQLException> factory, int readerCount, Duration timeout,
+                          int statementCacheSize, StatementCache.Stats statementCacheStats) {
+        if (readerCount < 0)
+            throw new IllegalArgumentException("Read connections count should not be negative: " + readerCount);
+        if (timeout.isNegative())
+            throw new IllegalArgumentException("Timeout should not be negative: " + timeout);
+        this.factory = factory;
+        this.readerCount = readerCount;
+        this.timeout = timeout;
+        this.statementCacheSize = statementCacheSize;
+        this.statementCacheStats = statementCacheStats;
+        this.readPermits = new Semaphore(readerCount, true);
+    }
+
+    /**
+     * @return read-only connection, the writer if the pool has no read connections
+     * @throws SQLTransientConnectionException when no connection is released within the timeout
+     */
+    public Connection getReadConnection() throws SQLException {
+        if (readerCount == 0) {
+            if (writerLock.isHeldByCurrentThread()) return getWriteConnection();
+            return readWriter();
+        }
+        assertOpen();
+        long start = System.nanoTime();
+        try {
+            if (!readPermits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                stats.timeouts.increment();
+                throw new SQLTransientConnectionException("No read connection released within " + timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+        stats.readWaitNanos.add(System.nanoTime() - start);
+        stats.readAcquisitions.increment();
+        final Connection physical;
+        try {
+            Connection idle = idleReaders.pollFirst();
+            while (idle != null && idle.isClosed()) {
+                discard(idle);
+                idle = idleReaders.pollFirst();
+            }
+            physical = idle != null ? idle : open(true);
+        } catch (SQLException | RuntimeException e) {
+            readPermits.release();
+            throw e;
+        }
+        activeReaders.incrementAndGet();
+        Connection leased = lease(physical, () -> releaseReader(physical));
+        configure(physical, false, leased);
+        return leased;
+    }
+
+    /**
+     * Leases the writer connection for a read, the pool has no read connections
+     */
+    private Connection readWriter() throws SQLException {
+        assertOpen();
+        long start = System.nanoTime();
+        final Connection physical;
+        if (joinReadLease()) physical = writer;
+        else {
+            acquireWriter(start);
+            physical = writerConnection(writerPermit::release);
+            readLeaseOwner = Thread.currentThread();
+            readLeases.set(1);
+        }
+        stats.readWaitNanos.add(System.nanoTime() - start);
+        stats.readAcquisitions.increment();
+        Connection leased = lease(physical, () -> releaseReadLease(physical));
+        configure(physical, true, leased);
+        return leased;
+    }
+
+    /**
+     * Counts one more lease of the writer taken for a read by the current thread
+     * @return false if the current thread holds no such lease
+     */
+    private boolean joinReadLease() {
+        if (readLeaseOwner != Thread.currentThread()) return false;
+        int count;
+        do {
+            count = readLeases.get();
+            if (count == 0) return false; //released by another thread
+        } while (!readLeases.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    private void releaseReadLease(Connection physical) {
+        if (readLeases.decrementAndGet() > 0) return;
+        readLeaseOwner = null;
+        releaseWriterPermit(physical);
+    }
+
+    /**
+     * @return the writer connection
+     * @throws SQLTransientConnectionException when the writer is not released within the timeout
+     */
+    public Connection getWriteConnection() throws SQLException {
+        assertOpen();
+        long start = System.nanoTime();
+        try {
+            if (!writerLock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                stats.timeouts.increment();
+                throw new SQLTransientConnectionException("Writer connection not released within " + timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the writer connection", e);
+        }
+        final Connection physical;
+        final Runnable release;
+        if (writerLock.getHoldCount() > 1) {
+            physical = writer;
+            release = writerLock::unlock;
+        } else if (joinReadLease()) {
+            //the thread writes by the connection it reads
+            physical = writer;
+            release = () -> {
+                try {
+                    releaseReadLease(physical);
+                } finally {
+                    writerLock.unlock();
+                }
+            };
+        } else {
+            try {
+                acquireWriter(start);
+            } catch (SQLException | RuntimeException e) {
+                writerLock.unlock();
+                throw e;
+            }
+            physical = writerConnection(() -> {
+                writerPermit.release();
+                writerLock.unlock();
+            });
+            release = () -> {
+                try {
+                    releaseWriterPermit(physical);
+                } finally {
+                    writerLock.unlock();
+                }
+            };
+        }
+        stats.writeWaitNanos.add(System.nanoTime() - start);
+        stats.writeAcquisitions.increment();
+        Connection leased = lease(physical, release);
+        configure(physical, true, leased);
+        return leased;
+    }
+
+    /**
+     * Takes the writer permit within the rest of the timeout
+     * @param start nanos of the request
+     */
+    private void acquireWriter(long start) throws SQLException {
+        try {
+            if (!writerPermit.tryAcquire(timeout.toNanos() - (System.nanoTime() - start), TimeUnit.NANOSECONDS)) {
+                stats.timeouts.increment();
+                throw new SQLTransientConnectionException("Writer connection not released within " + timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the writer connection", e);
+        }
+    }
+
+    /**
+     * Opens the writer connection if needed, the writer permit is held
+     * @param onError releases the permit if the connection is not opened
+     */
+    private Connection writerConnection(Runnable onError) throws SQLException {
+        try {
+            if (writer != null && writer.isClosed()) {
+                discard(writer);
+                writer = null;
+            }
+            if (writer == null) writer = open(false);
+            return writer;
+        } catch (SQLException | RuntimeException e) {
+            onError.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the settings of the connections. Each connection applies them when it is leased out of a transaction,
+     * the connections in use keep the previous settings until then
+     * @param configurer settings or {@code null}
+     */
+    public void setConfigurer(Configurer configurer) {
+        this.configurer = configurer;
+        configuration.incrementAndGet();
+    }
+
+    private void configure(Connection physical, boolean writer, Connection leased) throws SQLException {
+        long current = configuration.get();
+        Long applied = configured.get(physical);
+        if (applied != null && applied == current) return;
+        try {
+            if (!physical.getAutoCommit()) return;
+            Configurer settings = configurer;
+            if (settings != null) settings.configure(physical, writer);
+            configured.put(physical, current);
+        } catch (SQLException | RuntimeException e) {
+            leased.close();
+            throw e;
+        }
+    }
+
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    public int getActiveReaders() {
+        return activeReaders.get();
+    }
+
+    public int getIdleReaders() {
+        return idleReaders.size();
+    }
+
+    /**
+     * @return share of the read connections in use, from 0 to 1
+     */
+    public double getReaderUtilisation() {
+        return readerCount == 0 ? 0 : (double) activeReaders.get() / readerCount;
+    }
+
+    public boolean isWriterBusy() {
+        return writerPermit.availablePermits() == 0;
+    }
+
+    /**
+     * @return estimated count of the threads waiting for the writer
+     */
+    public int getQueuedWriters() {
+        return writerLock.getQueueLength();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Closes all connections, the leased ones as well
+     */
+    @Override
+    public void close() {
+        closed = true;
+        opened.forEach(this::discard);
+        idleReaders.clear();
+        log.fine(() -> "Pool closed: " + stats);
+    }
+
+    private void assertOpen() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+    }
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Connection physical = factory.get();
+        try {
+            if (readOnly)
+                try (Statement statement = physical.createStatement()) {
+                    statement.execute("PRAGMA query_only=1");
+                }
+        } catch (SQLException e) {
+            physical.close();
+            throw e;
+        }
+        Connection connection = StatementCache.wrap(physical, statementCacheSize, statementCacheStats);
+        opened.add(connection);
+        stats.created.increment();
+        return connection;
+    }
+
+    private void releaseReader(Connection physical) {
+        activeReaders.decrementAndGet();
+        if (!closed && reset(physical)) idleReaders.addFirst(physical);
+        else discard(physical);
+        readPermits.release();
+    }
+
+    private void releaseWriterPermit(Connection physical) {
+        try {
+            if (closed || !reset(physical)) {
+                discard(physical);
+                writer = null;
+            }
+        } finally {
+            writerPermit.release();
+        }
+    }
+
+    /**
+     * Validates the returned connection and ends its transaction
+     * @return false if the connection is not usable
+     */
+    private static boolean reset(Connection connection) {
+        try {
+            if (connection.isClosed()) return false;
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.fine("Pooled connection reset error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void discard(Connection connection) {
+        opened.remove(connection);
+        configured.remove(connection);
+        stats.discarded.increment();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.fine("Pooled connection close error: " + e.getMessage());
+        }
+    }
+
+    private static Connection lease(Connection physical, Runnable release) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new java.lang.reflect.InvocationHandler() {
+                    private boolean released = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "close" -> {
+                                if (!released) {
+                                    released = true;
+                                    release.run();
+                                }
+                                return null;
+                            }
+                            case "isClosed" -> {
+                                return released || physical.isClosed();
+                            }
+                            case "equals" -> {
+                                return proxy == args[0];
+                            }
+                            case "hashCode" -> {
+                                return System.identityHashCode(proxy);
+                            }
+                            case "toString" -> {
+                                return physical.toString();
+                            }
+                        }
+                        if (released) throw new SQLException("Connection is returned to the pool");
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Usage counters of the connection pool
+     */
+    public static class Stats {
+        private final LongAdder readAcquisitions = new LongAdder();
+        private final LongAdder writeAcquisitions = new LongAdder();
+        private final LongAdder readWaitNanos = new LongAdder();
+        private final LongAdder writeWaitNanos = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder created = new LongAdder();
+        private final LongAdder discarded = new LongAdder();
+
+        public long getReadAcquisitions() {
+            return readAcquisitions.sum();
+        }
+
+        public long getWriteAcquisitions() {
+            return writeAcquisitions.sum();
+        }
+
+        /**
+         * @return total time waited for the read connections
+         */
+        public Duration getReadWait() {
+            return Duration.ofNanos(readWaitNanos.sum());
+        }
+
+        /**
+         * @return total time waited for the writer connection
+         */
+        public Duration getWriteWait() {
+            return Duration.ofNanos(writeWaitNanos.sum());
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        /**
+         * @return count of the opened physical connections
+         */
+        public long getCreated() {
+            return created.sum();
+        }
+
+        /**
+         * @return count of the closed physical connections
+         */
+        public long getDiscarded() {
+            return discarded.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectionPool.Stats{" +
+                    "readAcquisitions=" + getReadAcquisitions() +
+                    ", writeAcquisitions=" + getWriteAcquisitions() +
+                    ", readWait=" + getReadWait() +
+                    ", writeWait=" + getWriteWait() +
+                    ", timeouts=" + getTimeouts() +
+                    ", created=" + getCreated() +
+                    ", discarded=" + getDiscarded() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.jisj.orm.jdbc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * LRU cache of prepared statements of one connection keyed by SQL text.
+ * Closing of a cached statement returns it to the cache, closing of the connection closes all cached statements.
+ * A statement is given to one user at a time: the same SQL requested while its statement is in use is prepared again.
+ * The cache is not thread safe as well as the connection
+ */
+public class StatementCache {
+    private static final Logger log = Logger.getLogger(StatementCache.class.getName());
+    private final Connection connection;
+    private final Stats stats;
+    private final Map<String, PreparedStatement> idle;
+
+    private StatementCache(Connection connection, int maxSize, Stats stats) {
+        this.connection = connection;
+        this.stats = stats;
+        this.idle = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= maxSize) return false;
+                closeQuietly(eldest.getValue());
+                stats.evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Wraps the connection by the statement cache
+     * @param connection physical connection
+     * @param maxSize max count of cached statements
+     * @param stats counters, can be shared between connections
+     * @return connection with cached {@link Connection#prepareStatement(String)}
+     */
+    public static Connection wrap(Connection connection, int maxSize, Stats stats) {
+        if (maxSize < 1) return connection;
+        StatementCache cache = new StatementCache(connection, maxSize, stats);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "prepareStatement" -> args.length == 1 ? cache.prepare((String) args[0]) : invoke(connection, method, args);
+                    case "close" -> {
+                        cache.clear();
+                        connection.close();
+                        yield null;
+                    }
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> invoke(connection, method, args);
+                });
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = idle.remove(sql);
+        if (statement == null) {
+            stats.misses.increment();
+            statement = connection.prepareStatement(sql);
+        } else stats.hits.increment();
+        return lease(sql, statement);
+    }
+
+    private void release(String sql, PreparedStatement statement, ResultSet resultSet) {
+        try {
+            if (resultSet != null && !resultSet.isClosed()) resultSet.close();
+            statement.clearParameters();
+            statement.clearBatch();
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+        PreparedStatement displaced = idle.put(sql, statement);
+        if (displaced != null) closeQuietly(displaced);
+    }
+
+    private void clear() {
+        idle.values().forEach(StatementCache::closeQuietly);
+        idle.clear();
+    }
+
+    private PreparedStatement lease(String sql, PreparedStatement statement) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                new java.lang.reflect.InvocationHandler() {
+                    private boolean closed = false;
+                    private ResultSet resultSet;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "close" -> {
+                                if (!closed) release(sql, statement, resultSet);
+                                closed = true;
+                                return null;
+                            }
+                            case "isClosed" -> {
+                                return closed;
+                            }
+                            case "equals" -> {
+                                return proxy == args[0];
+                            }
+                            case "hashCode" -> {
+                                return System.identityHashCode(proxy);
+                            }
+                            case "toString" -> {
+                                return statement.toString();
+                            }
+                        }
+                        if (closed) throw new SQLException("Statement is closed: " + sql);
+                        Object result = StatementCache.invoke(statement, method, args);
+                        if (result instanceof ResultSet rs && method.getName().equals("executeQuery")) resultSet = rs;
+                        return result;
+                    }
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.fine("Cached statement close error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Usage counters of statement caches
+     */
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "StatementCache.Stats{" +
+                    "hits=" + getHits() +
+                    ", misses=" + getMisses() +
+                    ", evictions=" + getEvictions() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.jisj.orm.repository;
+
+import com.jisj.orm.DAO;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the reads by ID of concurrent callers and loads them by one {@code IN} query.
+ * A batch is dispatched when the window since its first ID expires or when it reaches the max batch size.
+ * The same ID requested twice within a batch is read once
+ *
+ * @param <T>  entity type
+ * @param <ID> entity identifier
+ */
+public class BatchLoader<T, ID> implements AutoCloseable {
+    private final DAO<T, ID> dao;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong batchCount = new AtomicLong();
+    private Map<ID, CompletableFuture<T>> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledDispatch;
+
+    /**
+     * @param window       time to wait for more IDs after the first one of a batch
+     * @param maxBatchSize IDs count to dispatch the batch without waiting
+     */
+    public BatchLoader(DAO<T, ID> dao, Duration window, int maxBatchSize) {
+        if (window.isNegative())
+            throw new IllegalArgumentException("Window should not be negative: " + window);
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Batch size should be positive: " + maxBatchSize);
+        this.dao = dao;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BatchLoader-" + dao.getProfile().getTableName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return future of the entity or {@code null} if not found
+     */
+    public CompletableFuture<T> load(ID id) {
+        Map<ID, CompletableFuture<T>> full = null;
+        CompletableFuture<T> future;
+        synchronized (this) {
+            future = pending.computeIfAbsent(id, key -> new CompletableFuture<>());
+            if (pending.size() >= maxBatchSize) {
+                full = takePending();
+            } else if (scheduledDispatch == null) {
+                scheduledDispatch = scheduler.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) dispatch(full);
+        return future;
+    }
+
+    /**
+     * @return future of the found entities by ID, missing IDs are absent
+     */
+    public CompletableFuture<Map<ID, T>> loadAll(Collection<ID> ids) {
+        Map<ID, CompletableFuture<T>> futures = new LinkedHashMap<>();
+        for (ID id : ids) futures.computeIfAbsent(id, this::load);
+        return CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new))
+                .thenApply(ignore -> {
+                    Map<ID, T> result = new LinkedHashMap<>();
+                    futures.forEach((id, future) -> {
+                        T entity = future.join();
+                        if (entity != null) result.put(id, entity);
+                    });
+                    return result;
+                });
+    }
+
+    /**
+     * Dispatches the pending IDs without waiting for the window
+     */
+    public void flush() {
+        Map<ID, CompletableFuture<T>> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) dispatch(batch);
+    }
+
+    /**
+     * @return count of the dispatched queries
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Dispatches the pending IDs and stops the scheduler
+     */
+    @Override
+    public void close() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    private Map<ID, CompletableFuture<T>> takePending() {
+        Map<ID, CompletableFuture<T>> batch = pending;
+        pending = new LinkedHashMap<>();
+        if (scheduledDispatch != null) {
+            scheduledDispatch.cancel(false);
+            scheduledDispatch = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(Map<ID, CompletableFuture<T>> batch) {
+        batchCount.incrementAndGet();
+        try {
+            Map<ID, T> found = dao.readAll(batch.keySet());
+            batch.forEach((id, future) -> future.complete(found.get(id)));
+        } catch (Exception e) {
+            batch.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.jisj.orm.repository;
 
 
+import com.jisj.orm.Aggregate;
 import com.jisj.orm.DAOException;
+import com.jisj.orm.Page;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -29,15 +33,53 @@ public interface CRUDRepository<T, ID> extends Repository<T, ID> {
     Optional<T> getByEntity(T entity);
 
     /**
-     * Gets all records from the entity table
+     * Gets all records from the entity table.
+     * The stream holds a connection until it is drained or closed, see {@link #streamAll(String, String, Object...)}
      * @return stream of entities
      */
     Stream<T> getAll();
 
+    /**
+     * Gets the records by the set of IDs, large sets are split into several {@code IN} queries
+     * @return found entities by ID, missing IDs are absent
+     * @see BatchLoader
+     */
+    Map<ID, T> getAll(Collection<ID> ids);
+
+    /**
+     * Same as {@link #getAll(Collection)}
+     * @return found entities in the order of the IDs, missing IDs are skipped
+     */
+    List<T> getAllInOrder(List<ID> ids);
+
+    /**
+     * Reads the entities lazily in constant memory. The stream holds a connection until it is drained or closed,
+     * so a stream which can be not consumed to the end should be used in try-with-resources
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     * @param orderBy ORDER BY clause without "ORDER BY" words or {@code null}
+     * @param args values of the '?' parameters of the WHERE clause
+     * @return stream of entities
+     */
+    Stream<T> streamAll(String whereClause, String orderBy, Object... args);
+
     void update(T entity) throws DAOException;
 
+    /**
+     * Updates the entities by ID with JDBC batches in one transaction
+     */
+    void updateAll(List<T> entities) throws DAOException;
+
+    /**
+     * Inserts the entity or updates the stored record with the same ID by one statement.
+     * The entity without ID is inserted
+     */
     void addOrUpdate(T entity) throws DAOException;
 
+    /**
+     * Batched {@link #addOrUpdate(Object)} of the list in one transaction
+     */
+    void addOrUpdateAll(List<T> entities) throws DAOException;
+
     /**
      * Updates the store record by not-null fields from entity. The specified entity has priority if field is not-null.
      * Specified entity will be filled by merged record
@@ -45,6 +87,12 @@ public interface CRUDRepository<T, ID> extends Repository<T, ID> {
      */
     void merge(T entity);
 
+    /**
+     * Bulk {@link #merge(Object)}: the stored records are found by one query per batch
+     * and the list is written by batched UPSERT in one transaction
+     */
+    void mergeAll(List<T> entities) throws DAOException;
+
     void delete(ID id) throws DAOException;
 
     void deleteAll(String whereClause, Object... args);
@@ -71,6 +119,81 @@ public interface CRUDRepository<T, ID> extends Repository<T, ID> {
     @SuppressWarnings("unused")
     List<T> findAll(String whereClause, Object... args);
 
+    /**
+     * Gets the page of entities ordered by ID after the specified ID
+     * @param afterId ID of the last entity of the previous page or {@code null} for the first page
+     * @param size max count of entities of the page
+     */
+    Page<T> getPage(Object afterId, int size);
+
+    /**
+     * Gets the page of entities ordered by the key columns after the key values (keyset pagination).
+     * The ID column is added to the key columns, the next page is requested by
+     * {@code getPage(page.keyColumns(), page.nextKey(), size)}
+     * @param keyColumns column names of the order
+     * @param afterKey key values of the last entity of the previous page or {@code null} for the first page
+     * @param size max count of entities of the page
+     */
+    Page<T> getPage(String[] keyColumns, Object[] afterKey, int size);
+
+    /**
+     * Gets only the columns of the projection type, ex: {@code project(IdName.class, "group=?", group)}
+     * for {@code record IdName(Integer id, String name)}
+     * @param type record or class with no-args constructor, its components/fields are matched with the entity fields or columns by name
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     * @param args values of the '?' parameters of the WHERE clause
+     * @return {@code List<P>} of projections | empty {@code List}
+     */
+    <P> List<P> project(Class<P> type, String whereClause, Object... args);
+
+    /**
+     * Gets the entities with only the specified fields filled
+     * @param fieldNames entity field names
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     * @param args values of the '?' parameters of the WHERE clause
+     */
+    List<T> findPartial(String[] fieldNames, String whereClause, Object... args);
+
+    /**
+     * @return count of all records
+     */
+    long count();
+
+    /**
+     * Counts the records on the database side, ex: {@code count("group=?", group)}
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     */
+    long count(String whereClause, Object... args);
+
+    /**
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     * @return true if any record matches
+     */
+    boolean exists(String whereClause, Object... args);
+
+    /**
+     * @param columnName column name of the entity table
+     * @param resultType java type of the sum: Integer, Long or Double
+     * @param whereClause WHERE clause without "WHERE" word or {@code null} for all records
+     * @return sum or empty if no records matched
+     */
+    <R> Optional<R> sum(String columnName, Class<R> resultType, String whereClause, Object... args);
+
+    <R> Optional<R> min(String columnName, Class<R> resultType, String whereClause, Object... args);
+
+    <R> Optional<R> max(String columnName, Class<R> resultType, String whereClause, Object... args);
+
+    Optional<Double> avg(String columnName, String whereClause, Object... args);
+
+    /**
+     * Calculates the aggregate function for every value of the group column,
+     * ex: {@code groupBy("group", String.class, Aggregate.COUNT, "*", Long.class, null)}
+     * @return results by the group values ordered by the group values
+     */
+    <K, R> Map<K, R> groupBy(String groupColumn, Class<K> keyType,
+                             Aggregate function, String columnName, Class<R> resultType,
+                             String whereClause, Object... args);
+
     /**
      * Performs random select SQL query to DB. In SELECT clause should be pointed all fields of the queried entity
      *
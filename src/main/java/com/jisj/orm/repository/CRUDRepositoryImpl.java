@@ -3,14 +3,27 @@ package com.jisj.orm.repository;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.java.Log;
+import com.jisj.orm.Aggregate;
 import com.jisj.orm.DAO;
+import com.jisj.orm.DAOImpl;
 import com.jisj.orm.DAOException;
-
-import jakarta.persistence.UniqueConstraint;
+import com.jisj.orm.DBDataSource;
+import com.jisj.orm.EntityBatchException;
+import com.jisj.orm.Page;
+import com.jisj.orm.Session;
+import com.jisj.orm.UniqueKeys;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Stream;
 
 import static com.jisj.orm.DAOException.onSQLError;
@@ -22,6 +35,11 @@ import static com.jisj.orm.DAOException.onSQLError;
 public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     protected final DAO<T, ID> dao;
     protected OrmRepoContainer global = null;
+    /**
+     * If set, {@link #get(Object)} and {@link #getAll(Collection)} are batched with the other callers.
+     * Inside a transaction of {@link DBDataSource} the reads are not batched: the loader thread does not see the transaction
+     */
+    private BatchLoader<T, ID> batchLoader = null;
 
     public CRUDRepositoryImpl(DAO<T, ID> dao) {
         this.dao = dao;
@@ -31,6 +49,7 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     public void add(T entity) throws DAOException {
         try {
             dao.create(entity);
+            remember(entity);
         } catch (SQLException e) {
             throw onSQLError(e, entity, log);
         }
@@ -40,6 +59,9 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     public void addAll(List<T> entity) throws DAOException {
         try {
             dao.createAll(entity);
+            entity.forEach(this::remember);
+        } catch (EntityBatchException e) {
+            throw onSQLError(e, e.getFailedEntity(), log);
         } catch (SQLException e) {
             throw onSQLError(e, entity, log);
         }
@@ -47,13 +69,98 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
 
     @Override
     public T get(ID id) {
+        Optional<Session> session = Session.current();
+        if (session.isPresent()) {
+            T found = session.get().find(dao.getProfile().getEntityClass(), id);
+            if (found != null) return found;
+        }
+        BatchLoader<T, ID> loader = currentBatchLoader();
+        if (loader != null) return canonical(join(loader.load(id)));
         try {
-            return dao.read(id);
+            return canonical(dao.read(id));
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public Map<ID, T> getAll(Collection<ID> ids) {
+        Map<ID, T> result = new HashMap<>();
+        Collection<ID> missing = ids;
+        Optional<Session> session = Session.current();
+        if (session.isPresent()) {
+            missing = new ArrayList<>();
+            for (ID id : ids) {
+                T found = session.get().find(dao.getProfile().getEntityClass(), id);
+                if (found != null) result.put(id, found);
+                else missing.add(id);
+            }
+            if (missing.isEmpty()) return result;
+        }
+        try {
+            BatchLoader<T, ID> loader = currentBatchLoader();
+            Map<ID, T> read = loader != null ? join(loader.loadAll(missing)) : dao.readAll(missing);
+            read.forEach((id, entity) -> result.put(id, canonical(entity)));
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<T> getAllInOrder(List<ID> ids) {
+        Map<ID, T> found = getAll(ids);
+        return ids.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /**
+     * @return instance registered in the session of the current thread, the entity itself without session
+     */
+    private T canonical(T entity) {
+        if (entity == null) return null;
+        return Session.current().map(session -> session.register(dao.getProfile(), entity)).orElse(entity);
+    }
+
+    private List<T> canonical(List<T> entities) {
+        return Session.current().isEmpty() ? entities : entities.stream().map(this::canonical).toList();
+    }
+
+    /**
+     * Makes the written entity canonical in the session of the current thread.
+     * Inside a transaction of {@link DBDataSource} the entity is evicted if the transaction is rolled back
+     */
+    private void remember(T entity) {
+        Session.current().ifPresent(session -> {
+            session.put(dao.getProfile(), entity);
+            Object id = dao.getProfile().getIdValue(entity);
+            if (id != null && dao.getDataSource() instanceof DBDataSource db)
+                db.getTransaction().ifPresent(tx -> tx.afterCompletion(() -> {
+                    if (!tx.isCommitted()) session.evict(dao.getProfile().getEntityClass(), id);
+                }));
+        });
+    }
+
+    /**
+     * @return batch loader usable by the current thread or {@code null}
+     */
+    private BatchLoader<T, ID> currentBatchLoader() {
+        if (batchLoader == null) return null;
+        if (dao.getDataSource() instanceof DBDataSource db && db.getTransaction().isPresent()) return null;
+        return batchLoader;
+    }
+
+    private static <R> R join(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     @Override
     public Optional<T> getOptional(ID id) {
         return Optional.ofNullable(get(id));
@@ -77,6 +184,15 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
         }
     }
 
+    @Override
+    public Stream<T> streamAll(String whereClause, String orderBy, Object... args) {
+        try {
+            return dao.stream(whereClause, orderBy, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void update(T entity) throws DAOException {
 //        if (entity.getId() == null)
@@ -84,76 +200,115 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
             throw new IllegalArgumentException("Wrong ID for update. Expected not null ID for entity " + entity);
         try {
             dao.update(entity);
+            remember(entity);
         } catch (SQLException e) {
             throw onSQLError(e, entity, log);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    @Override
+    public void updateAll(List<T> entities) throws DAOException {
+        for (T entity : entities)
+            if (dao.getProfile().getIdValue(entity) == null)
+                throw new IllegalArgumentException("Wrong ID for update. Expected not null ID for entity " + entity);
+        try {
+            dao.updateAll(entities);
+            entities.forEach(this::remember);
+        } catch (SQLException e) {
+            throw onSQLError(e, entities, log);
+        }
+    }
+
     @Override
     public void addOrUpdate(T entity) throws DAOException {
-//        if (entity.getId() == null) {
-        if (dao.getProfile().getIdValue(entity) == null) {
-            add(entity);
-            return;
+        try {
+            dao.upsert(entity);
+            remember(entity);
+        } catch (SQLException e) {
+            throw onSQLError(e, entity, log);
+        }
+    }
+
+    @Override
+    public void addOrUpdateAll(List<T> entities) throws DAOException {
+        try {
+            dao.upsertAll(entities);
+            entities.forEach(this::remember);
+        } catch (EntityBatchException e) {
+            throw onSQLError(e, e.getFailedEntity(), log);
+        } catch (SQLException e) {
+            throw onSQLError(e, entities, log);
         }
-        if (getOptional((ID) dao.getProfile().getIdValue(entity)).isEmpty()) add(entity);
-        else update(entity);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void merge(T entity) {
-        if (dao.getProfile().getIdValue(entity) != null) {
-            try {
-                Optional<T> found = getOptional((ID) dao.getProfile().getIdValue(entity));
-                if (found.isPresent()) {
-                    dao.getProfile().enrich(entity, found.get()); //TODO replace on UPDATE of not-null fields
-                    update(entity);
-                    return;
-                }
-            } catch (DAOException e) {
-                if (e.getErrorCode() != DAOException.ErrorCode.RECORD_NOT_FOUND)
-                    throw new RuntimeException(e);
-            }
+        try {
+            dao.findByKeys(entity).ifPresent(found -> mergeFound(entity, found));
+            dao.upsert(entity);
+            remember(entity);
+        } catch (SQLException e) {
+            throw new RuntimeException(onSQLError(e, entity, log));
         }
+    }
 
-        //searching by unique key fields
-        T found = dao.getProfile().getUniquePrimitiveColumns()
-                .filter(column -> !column.isId())
-                .filter(column -> column.getValue(entity) != null)
-                .map(column -> findByUnique(column.getColumnName(), column.getValue(entity)))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-//                .peek(r-> System.out.println("Found unique field: " + r))
-                .findAny()
-                //searching by unique constraints
-                .orElseGet(() -> dao.getProfile().getUniqueConstraints().stream()
-                                .map(UniqueConstraint::columnNames)
-                                .map(columns -> findByUnique(columns, dao.getProfile().getValues(columns, entity)))
-                                .filter(Optional::isPresent)
-                                .map(Optional::get)
-//                        .peek(r-> System.out.println("Found unique constraint: " + r))
-                                .findAny().orElse(null)
-                );
-
-        try {
-            if (found == null) add(entity);
-            else {
-//                entity.setId(found.getId());
-                dao.getProfile().setIdValue(entity, dao.getProfile().getIdValue(found));
-                dao.getProfile().enrich(entity, found);
-                update(entity);
-            }
-        } catch (DAOException e) {
-            throw new RuntimeException(e);
+    @Override
+    public void mergeAll(List<T> entities) throws DAOException {
+        UniqueKeys keys = dao instanceof DAOImpl<T, ID> impl ? impl.getUniqueKeys() : new UniqueKeys(dao.getProfile());
+        List<T> postponed = new ArrayList<>();
+        List<T> distinct = keys.distinct(entities, postponed);
+        try {
+            if (postponed.isEmpty()) mergeDistinct(distinct, dao.findAllByKeys(distinct));
+            else if (dao.getDataSource() instanceof DBDataSource db)
+                db.inTransaction(() -> mergeRounds(keys, distinct, postponed));
+            else mergeRounds(keys, distinct, postponed);
+            entities.forEach(this::remember);
+        } catch (EntityBatchException e) {
+            throw onSQLError(e, e.getFailedEntity(), log);
+        } catch (SQLException e) {
+            throw onSQLError(e, entities, log);
+        }
+    }
+
+    /**
+     * Entities sharing a key are merged one after another, as by sequential {@link #merge(Object)} calls:
+     * each round upserts the entities with distinct keys, the next round merges into the records written before
+     */
+    private Void mergeRounds(UniqueKeys keys, List<T> distinct, List<T> postponed) throws SQLException {
+        List<T> written = new ArrayList<>();
+        List<Optional<T>> found = dao.findAllByKeys(distinct);
+        while (true) {
+            mergeDistinct(distinct, found);
+            List<T> latestFirst = new ArrayList<>(distinct);
+            Collections.reverse(latestFirst);
+            written.addAll(0, latestFirst);
+            if (postponed.isEmpty()) return null;
+            List<T> pending = postponed;
+            postponed = new ArrayList<>();
+            distinct = keys.distinct(pending, postponed);
+            //the latest written record wins
+            found = keys.chooseAll(distinct, written);
         }
     }
 
+    private void mergeDistinct(List<T> entities, List<Optional<T>> found) throws SQLException {
+        for (int i = 0; i < entities.size(); i++) {
+            T entity = entities.get(i);
+            found.get(i).ifPresent(stored -> mergeFound(entity, stored));
+        }
+        dao.upsertAll(entities);
+    }
+
+    private void mergeFound(T entity, T found) {
+        dao.getProfile().setIdValue(entity, dao.getProfile().getIdValue(found));
+        dao.getProfile().enrich(entity, found);
+    }
+
     @Override
     public void delete(ID id) throws DAOException {
         try {
             dao.delete(id);
+            Session.current().ifPresent(session -> session.evict(dao.getProfile().getEntityClass(), id));
         } catch (SQLException e) {
             throw onSQLError(e, null, log);
         }
@@ -163,6 +318,7 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     public void deleteAll(String whereClause, Object... args) {
         try {
             dao.deleteAll(whereClause, args);
+            Session.current().ifPresent(session -> session.evictAll(dao.getProfile().getEntityClass()));
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -182,7 +338,7 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     @Override
     public Optional<T> findByUnique(String columnName, Object value) {
         try {
-            return dao.findByUnique(columnName, value);
+            return dao.findByUnique(columnName, value).map(this::canonical);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -191,7 +347,7 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     @Override
     public Optional<T> findByUnique(String[] columnNames, Object... values) {
         try {
-            return dao.findByUnique(columnNames, values);
+            return dao.findByUnique(columnNames, values).map(this::canonical);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -200,7 +356,107 @@ public class CRUDRepositoryImpl<T, ID> implements CRUDRepository<T, ID> {
     @Override
     public List<T> findAll(String whereClause, Object... args) {
         try {
-            return dao.findAll(whereClause, args);
+            return canonical(dao.findAll(whereClause, args));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Page<T> getPage(Object afterId, int size) {
+        String idColumn = dao.getProfile().getIdColumn().getColumnName();
+        return getPage(new String[]{idColumn}, afterId == null ? null : new Object[]{afterId}, size);
+    }
+
+    @Override
+    public Page<T> getPage(String[] keyColumns, Object[] afterKey, int size) {
+        try {
+            return dao.page(keyColumns, afterKey, size);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <P> List<P> project(Class<P> type, String whereClause, Object... args) {
+        try {
+            return dao.project(type, whereClause, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<T> findPartial(String[] fieldNames, String whereClause, Object... args) {
+        try {
+            return dao.findPartial(fieldNames, whereClause, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long count() {
+        try {
+            return dao.count();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long count(String whereClause, Object... args) {
+        try {
+            return dao.count(whereClause, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean exists(String whereClause, Object... args) {
+        try {
+            return dao.existsWhere(whereClause, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <R> Optional<R> sum(String columnName, Class<R> resultType, String whereClause, Object... args) {
+        return aggregate(Aggregate.SUM, columnName, resultType, whereClause, args);
+    }
+
+    @Override
+    public <R> Optional<R> min(String columnName, Class<R> resultType, String whereClause, Object... args) {
+        return aggregate(Aggregate.MIN, columnName, resultType, whereClause, args);
+    }
+
+    @Override
+    public <R> Optional<R> max(String columnName, Class<R> resultType, String whereClause, Object... args) {
+        return aggregate(Aggregate.MAX, columnName, resultType, whereClause, args);
+    }
+
+    @Override
+    public Optional<Double> avg(String columnName, String whereClause, Object... args) {
+        return aggregate(Aggregate.AVG, columnName, Double.class, whereClause, args);
+    }
+
+    private <R> Optional<R> aggregate(Aggregate function, String columnName, Class<R> resultType,
+                                      String whereClause, Object... args) {
+        try {
+            return dao.aggregate(function, columnName, resultType, whereClause, args);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <K, R> Map<K, R> groupBy(String groupColumn, Class<K> keyType,
+                                    Aggregate function, String columnName, Class<R> resultType,
+                                    String whereClause, Object... args) {
+        try {
+            return dao.groupBy(groupColumn, keyType, function, columnName, resultType, whereClause, args);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -2,11 +2,24 @@ package com.jisj.orm.repository;
 
 
 
+import java.util.Collection;
 import java.util.List;
 
 public interface JoinCRUDRepository<T, ID> extends CRUDRepository<T, ID> {
     List<T> findAllEmbedded(Object ownerId);
     List<T> findAllOwners(ID embeddedId);
     int deleteAllEmbedded(ID ownerId);
+
+    /**
+     * Links the embedded entities to the owner by one JDBC batch, the existing links are skipped
+     * @return inserted count
+     */
+    int addAllEmbedded(Object ownerId, Collection<?> embeddedIds);
+
+    /**
+     * Unlinks the embedded entities from the owner by one JDBC batch
+     * @return deleted count
+     */
+    int deleteEmbedded(Object ownerId, Collection<?> embeddedIds);
     T createEntity(ID ownerId, ID embeddedId);
 }
@@ -2,11 +2,21 @@ package com.jisj.orm.repository;
 
 
 import com.jisj.orm.DAO;
+import com.jisj.orm.DAOException;
+import com.jisj.orm.Page;
+import com.jisj.orm.StatementBuilder;
 import com.jisj.orm.entity.JoinTableEntity;
 
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 
+/**
+ * Repository of a join table. A compact join table is created WITHOUT ROWID and its records have no ID:
+ * the operations by ID throw {@link UnsupportedOperationException}, the records are accessed by the owner and embedded IDs
+ *
+ * @see com.jisj.orm.DBEnvironment#setCompactJoinTables(boolean)
+ */
 public class JoinCRUDRepositoryImpl<T, ID> extends CRUDRepositoryImpl<JoinTableEntity<ID>, ID> implements JoinCRUDRepository<JoinTableEntity<ID>,ID> {
     @SuppressWarnings("unchecked")
     public JoinCRUDRepositoryImpl(DAO<T, ID> dao) {
@@ -45,6 +55,51 @@ public class JoinCRUDRepositoryImpl<T, ID> extends CRUDRepositoryImpl<JoinTableE
         }
     }
 
+    @Override
+    public int addAllEmbedded(Object ownerId, Collection<?> embeddedIds) {
+        return updateBatch(StatementBuilder.buildJoinInsertStatement(dao.getProfile()), ownerId, embeddedIds);
+    }
+
+    @Override
+    public int deleteEmbedded(Object ownerId, Collection<?> embeddedIds) {
+        return updateBatch(StatementBuilder.buildJoinDeleteStatement(dao.getProfile()), ownerId, embeddedIds);
+    }
+
+    private int updateBatch(String statement, Object ownerId, Collection<?> embeddedIds) {
+        try {
+            return dao.updateBatch(statement, embeddedIds.stream()
+                    .map(embeddedId -> new Object[]{ownerId, embeddedId})
+                    .toList());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //the operations by ID are rejected by the DAO, these ones check the ID before
+    @Override
+    public void update(JoinTableEntity<ID> entity) throws DAOException {
+        assertRowId();
+        super.update(entity);
+    }
+
+    @Override
+    public void updateAll(List<JoinTableEntity<ID>> entities) throws DAOException {
+        assertRowId();
+        super.updateAll(entities);
+    }
+
+    @Override
+    public Page<JoinTableEntity<ID>> getPage(Object afterId, int size) {
+        assertRowId();
+        return super.getPage(afterId, size);
+    }
+
+    private void assertRowId() {
+        if (dao.getProfile().isWithoutRowId())
+            throw new UnsupportedOperationException("The records of " + dao.getProfile().getTableName() +
+                    " have no ID, the table is created WITHOUT ROWID");
+    }
+
     @Override
     public JoinTableEntity<ID> createEntity(ID ownerId, ID embeddedId) {
         JoinTableEntity<ID> entity = new JoinTableEntity<>(ownerId, embeddedId);
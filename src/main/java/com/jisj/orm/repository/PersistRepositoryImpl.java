@@ -2,9 +2,12 @@ package com.jisj.orm.repository;
 
 import com.jisj.orm.DAO;
 import com.jisj.orm.DAOException;
+import com.jisj.orm.DBDataSource;
 import com.jisj.orm.EntityProfile;
+import com.jisj.orm.Session;
 import com.jisj.orm.entity.JoinTableEntity;
 
+import java.sql.SQLException;
 import java.util.*;
 
 /**
@@ -44,17 +47,10 @@ public class PersistRepositoryImpl<T, ID> implements PersistRepository<T, ID> {
         dao.getProfile().getManyToManyColumns().forEach(column -> {
             if (column.isCollection() && column.getValue(entity) != null) {
                 CRUDRepository<?, ?> embedCrud = global.getCrudRepository(column.getTargetJavaType());
-                JoinCRUDRepositoryImpl<?, ?> joinCrud = (JoinCRUDRepositoryImpl<?, ?>) global.getCrudRepository(column.getJoinTableProfile().getTableName());
-
-                ((Collection<?>) column.getValue(entity))
-                        .forEach(embeddedEntity -> {
-                            if (column.isInsertable())
-                                saveEmbeddedEntity(embedCrud, embeddedEntity);
-                            JoinTableEntity<?> joinEntity = createJoinTableEntity(entity, embeddedEntity,
-                                    ((CRUDRepositoryImpl<?, ?>) embedCrud).getDao().getProfile(),
-                                    joinCrud.getDao().getProfile());
-                            addJoinTableEntity(joinCrud, joinEntity);
-                        });
+                Collection<?> embedded = (Collection<?>) column.getValue(entity);
+                if (column.isInsertable())
+                    embedded.forEach(embeddedEntity -> saveEmbeddedEntity(embedCrud, embeddedEntity));
+                linkEmbedded(entity, column, embedded);
             }
         });
     }
@@ -81,80 +77,184 @@ public class PersistRepositoryImpl<T, ID> implements PersistRepository<T, ID> {
         }
     }
 
-    private JoinTableEntity<?> createJoinTableEntity(Object ownerEntity, Object embeddedEntity, EntityProfile embeddedProfile, EntityProfile joinProfile) {
-        Object ownerJoinFieldValue = dao.getProfile().getColumnByField("id").getValue(ownerEntity);
-        Object embedJoinFieldValue = embeddedProfile.getColumnByField("id").getValue(embeddedEntity);
-        if (embedJoinFieldValue == null)
-            throw new IllegalArgumentException("Unexpected ID=null in embedded entity " + embeddedEntity.getClass());
-        JoinTableEntity<?> joinTableEntity = new JoinTableEntity<>(ownerJoinFieldValue, embedJoinFieldValue);
-        //for DAOException message
-        joinTableEntity.setProfile(joinProfile);
-        return joinTableEntity;
+    /**
+     * Links the embedded entities to the owner by one batch of {@code INSERT ... ON CONFLICT DO NOTHING}, the existing links are kept
+     */
+    private void linkEmbedded(T entity, EntityProfile.Column column, Collection<?> embedded) {
+        EntityProfile embedProfile = global.getDao(column.getTargetJavaType()).getProfile();
+        JoinCRUDRepository<?, ?> joinCrud = (JoinCRUDRepository<?, ?>) global.getCrudRepository(column.getJoinTableProfile().getTableName());
+        Set<Object> ids = new LinkedHashSet<>();
+        for (Object embeddedEntity : embedded) {
+            Object id = embedProfile.getIdValue(embeddedEntity);
+            if (id == null)
+                throw new IllegalArgumentException("Unexpected ID=null in embedded entity " + embeddedEntity.getClass());
+            ids.add(id);
+        }
+        joinCrud.addAllEmbedded(dao.getProfile().getIdValue(entity), ids);
     }
 
-    @SuppressWarnings("unchecked")
-    private static void addJoinTableEntity(CRUDRepository<?, ?> joinCrud, JoinTableEntity<?> joinTableEntity) {
-        try {
-            ((JoinCRUDRepository<JoinTableEntity<?>, ?>) joinCrud).add(joinTableEntity);
-        } catch (DAOException e) {
-            if (e.getErrorCode() == DAOException.ErrorCode.RECORD_EXISTS) return;
-            throw new RuntimeException(e);
+    private void loadEmbedded(T entity) {
+        Map<Object, T> loaded = new HashMap<>();
+        loaded.put(dao.getProfile().getIdValue(entity), entity);
+        List<T> duplicates = new ArrayList<>();
+        Map<Object, Set<Object>> ancestors = new IdentityHashMap<>();
+        ancestors.put(entity, Set.of());
+        loadEmbedded(List.of(entity), loaded, duplicates, ancestors);
+        //the nested entities met again at a deeper level get the collections of the loaded instance, a cycle is stopped
+        for (T duplicate : duplicates) {
+            Object id = dao.getProfile().getIdValue(duplicate);
+            T source = loaded.get(id);
+            if (source == duplicate || ancestors.get(duplicate).contains(id)) continue;
+            for (EntityProfile.Column column : dao.getProfile().getManyToManyColumnList()) {
+                if (!column.isCollection() || !column.isFetchEager()) continue;
+                Collection<?> embedded = (Collection<?>) column.getValue(source);
+                if (embedded == null) continue;
+                column.setValue(duplicate, embedded instanceof Set<?> ? new HashSet<>(embedded) : List.copyOf(embedded));
+            }
         }
     }
 
+    /**
+     * Fills the eager collections of the owners by one JOIN query per column.
+     * Nested entities of the owner type are loaded level by level, so a tree costs one query per level.
+     * Inside a {@link Session} the embedded entities are replaced by their canonical instances
+     * and the owners loaded before in the session are skipped
+     * @param loaded     instances by ID which collections are loaded, stops the cycles
+     * @param duplicates nested instances of the IDs loaded at an upper level
+     * @param ancestors  IDs of the owners above the instance
+     */
     @SuppressWarnings("unchecked")
-    private void loadEmbedded(T entity) {
-        dao.getProfile().getManyToManyColumns().forEach(column -> {
-            if (column.isCollection() && column.isFetchEager()) {
-                CRUDRepository<?, Object> embedCrud = (CRUDRepository<?, Object>) global.getCrudRepository(column.getTargetJavaType());
-                JoinCRUDRepository<?, ?> joinCrud = (JoinCRUDRepository<?, ?>) global.getCrudRepository(column.getJoinTableProfile().getTableName());
-                try {
-                    List<?> joined = joinCrud.findAllEmbedded(dao.getProfile().getIdValue(entity));
-                    List<?> embedded = joined.stream()
-                            .map(joinEntity -> embedCrud.getOptional(((JoinTableEntity<?>) joinEntity).getEmbeddedId()))
-                            .filter(Optional::isPresent)
-                            .map(Optional::get)
-                            .peek(e -> {
-                                if (e.getClass() == entity.getClass()) loadEmbedded((T) e); //for nested entities
-                            })
-                            .toList();
+    private void loadEmbedded(List<T> owners, Map<Object, T> loaded, List<T> duplicates, Map<Object, Set<Object>> ancestors) {
+        Optional<Session> session = Session.current();
+        Class<?> ownerClass = dao.getProfile().getEntityClass();
+        Map<Object, List<T>> ownersById = new LinkedHashMap<>();
+        for (T owner : owners) {
+            Object id = dao.getProfile().getIdValue(owner);
+            if (session.isEmpty() || !session.get().isLoaded(ownerClass, id))
+                ownersById.computeIfAbsent(id, key -> new ArrayList<>()).add(owner);
+        }
+        if (ownersById.isEmpty()) return;
+        List<T> nested = new ArrayList<>();
+        for (EntityProfile.Column column : dao.getProfile().getManyToManyColumnList()) {
+            if (!column.isCollection() || !column.isFetchEager()) continue;
+            DAO<Object, ?> embedDao = (DAO<Object, ?>) global.getDao(column.getTargetJavaType());
+            Map<Object, List<Object>> joined;
+            try {
+                joined = embedDao.findJoined(column.getJoinTableProfile(), ownersById.keySet());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            ownersById.forEach((id, sameOwners) -> {
+                List<Object> embedded = joined.getOrDefault(id, List.of());
+                if (session.isPresent())
+                    embedded = embedded.stream().map(e -> session.get().register(embedDao.getProfile(), e)).toList();
+                for (T owner : sameOwners) {
                     if (column.getField().getType().isAssignableFrom(Set.class)) {
-                        column.setValue(entity, new HashSet<>(embedded));
-                    } else column.setValue(entity, embedded);
-
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                        column.setValue(owner, new HashSet<>(embedded));
+                    } else column.setValue(owner, List.copyOf(embedded));
                 }
-            }
-        });
+                Set<Object> path = new HashSet<>(Set.of(id));
+                sameOwners.forEach(owner -> path.addAll(ancestors.getOrDefault(owner, Set.of())));
+                embedded.stream()
+                        .filter(e -> e.getClass() == sameOwners.getFirst().getClass()) //for nested entities
+                        .forEach(e -> {
+                            nested.add((T) e);
+                            ancestors.computeIfAbsent(e, key -> new HashSet<>()).addAll(path);
+                        });
+            });
+        }
+        session.ifPresent(s -> ownersById.keySet().forEach(id -> s.markLoaded(ownerClass, id)));
+        List<T> nextLevel = new ArrayList<>();
+        for (T e : nested) {
+            Object id = dao.getProfile().getIdValue(e);
+            if (loaded.containsKey(id)) duplicates.add(e);
+            else nextLevel.add(e);
+        }
+        if (nextLevel.isEmpty()) return;
+        nextLevel.forEach(e -> loaded.putIfAbsent(dao.getProfile().getIdValue(e), e));
+        loadEmbedded(nextLevel, loaded, duplicates, ancestors);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * {@inheritDoc}
+     * The join records are diffed with the collections: only the added links are inserted and only the removed ones
+     * are deleted. Embedded entities of updatable columns are updated only if they differ from the stored records.
+     * The owner, the embedded entities and the links are written in one transaction of {@link DBDataSource}
+     */
     @Override
     public void update(T entity) throws DAOException {
-        crud.update(entity);
-        for (EntityProfile.Column column : dao.getProfile().getManyToManyColumns().toList()) {
-            if (column.isCollection()) {
-                CRUDRepository<Object, ?> embedCrud = (CRUDRepository<Object, ?>) global.getCrudRepository(column.getTargetJavaType());
-                JoinCRUDRepositoryImpl<?, Object> joinCrud = (JoinCRUDRepositoryImpl<?, Object>) global.getCrudRepository(column.getJoinTableProfile().getTableName());
-
-                joinCrud.deleteAllEmbedded(dao.getProfile().getIdValue(entity));
-                for (Object embeddedEntity : ((Collection<?>) column.getValue(entity))) {
-                    if (column.isUpdatable())
-                        embedCrud.update(embeddedEntity);
-                    JoinTableEntity<?> joinEntity = createJoinTableEntity(entity, embeddedEntity,
-                            ((CRUDRepositoryImpl<?, ?>) embedCrud).getDao().getProfile(),
-                            joinCrud.getDao().getProfile());
-                    addJoinTableEntity(joinCrud, joinEntity);
+        if (dao.getDataSource() instanceof DBDataSource db)
+            db.inTransaction(() -> {
+                updateLinked(entity);
+                return null;
+            });
+        else updateLinked(entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void updateLinked(T entity) throws DAOException {
+        Map<EntityProfile.Column, Set<Object>> embeddedIds = new LinkedHashMap<>();
+        for (EntityProfile.Column column : dao.getProfile().getManyToManyColumnList()) {
+            if (column.isCollection() && column.getValue(entity) != null) {
+                EntityProfile embedProfile = global.getDao(column.getTargetJavaType()).getProfile();
+                Set<Object> ids = new LinkedHashSet<>();
+                for (Object embeddedEntity : (Collection<?>) column.getValue(entity)) {
+                    Object id = embedProfile.getIdValue(embeddedEntity);
+                    if (id == null)
+                        throw new IllegalArgumentException("Unexpected ID=null in embedded entity " + embeddedEntity.getClass());
+                    ids.add(id);
                 }
+                embeddedIds.put(column, ids);
             }
         }
+        crud.update(entity);
+        Object ownerId = dao.getProfile().getIdValue(entity);
+        for (Map.Entry<EntityProfile.Column, Set<Object>> entry : embeddedIds.entrySet()) {
+            EntityProfile.Column column = entry.getKey();
+            Set<Object> ids = entry.getValue();
+            if (column.isUpdatable())
+                updateChanged((CRUDRepository<Object, Object>) global.getCrudRepository(column.getTargetJavaType()),
+                        (DAO<Object, Object>) global.getDao(column.getTargetJavaType()),
+                        (Collection<Object>) column.getValue(entity), ids);
+
+            JoinCRUDRepository<JoinTableEntity<?>, ?> joinCrud =
+                    (JoinCRUDRepository<JoinTableEntity<?>, ?>) global.getCrudRepository(column.getJoinTableProfile().getTableName());
+            Set<Object> stored = new HashSet<>();
+            joinCrud.findAllEmbedded(ownerId).forEach(joinEntity -> stored.add(joinEntity.getEmbeddedId()));
+            joinCrud.deleteEmbedded(ownerId, stored.stream().filter(id -> !ids.contains(id)).toList());
+            joinCrud.addAllEmbedded(ownerId, ids.stream().filter(id -> !stored.contains(id)).toList());
+        }
+    }
+
+    /**
+     * The stored records are read by the DAO: the repository may return the instances of the {@link Session},
+     * which are the changed entities themselves
+     */
+    private static void updateChanged(CRUDRepository<Object, Object> embedCrud, DAO<Object, Object> embedDao,
+                                      Collection<Object> embedded, Set<Object> ids) throws DAOException {
+        EntityProfile embedProfile = embedDao.getProfile();
+        Map<Object, Object> stored;
+        try {
+            stored = embedDao.readAll(ids);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        //a missing record is not updated, its link fails by the foreign key
+        List<Object> changed = embedded.stream()
+                .filter(embeddedEntity -> {
+                    Object storedEntity = stored.get(embedProfile.getIdValue(embeddedEntity));
+                    return storedEntity != null && !embedProfile.hasSameUpdatableValues(embeddedEntity, storedEntity);
+                })
+                .toList();
+        if (!changed.isEmpty()) embedCrud.updateAll(changed);
     }
 
     @Override
     @Deprecated
     public void refresh(T entity) throws DAOException {
         crud.refresh(entity);
+        Session.current().ifPresent(session ->
+                session.resetLoaded(dao.getProfile().getEntityClass(), dao.getProfile().getIdValue(entity)));
         loadEmbedded(entity);
     }
 
@@ -173,20 +273,13 @@ public class PersistRepositoryImpl<T, ID> implements PersistRepository<T, ID> {
     private void persistColumn(T entity, EntityProfile.Column column) {
         if (column.isCollection() && column.getValue(entity) != null) {
             CRUDRepository<Object, ?> embedCrud = (CRUDRepository<Object, ?>) global.getCrudRepository(column.getTargetJavaType());
-            CRUDRepository<?, ?> joinCrud = global.getCrudRepository(column.getJoinTableProfile().getTableName());
-
-            ((Collection<?>) column.getValue(entity))
-                    .forEach(embeddedEntity -> {
-                        if (embeddedEntity.getClass() == entity.getClass())
-                            persist((T) embeddedEntity); //for nested entities
-                        persistEmbeddedEntity(column, embedCrud, embeddedEntity);
-                        JoinTableEntity<?> joinTableEntity = createJoinTableEntity(
-                                entity,
-                                embeddedEntity,
-                                ((CRUDRepositoryImpl<?, ?>) embedCrud).getDao().getProfile(),
-                                ((JoinCRUDRepositoryImpl<?, ?>) joinCrud).getDao().getProfile());
-                        addJoinTableEntity(joinCrud, joinTableEntity);
-                    });
+            Collection<?> embedded = (Collection<?>) column.getValue(entity);
+            embedded.forEach(embeddedEntity -> {
+                if (embeddedEntity.getClass() == entity.getClass())
+                    persist((T) embeddedEntity); //for nested entities
+                persistEmbeddedEntity(column, embedCrud, embeddedEntity);
+            });
+            linkEmbedded(entity, column, embedded);
         }
     }
 
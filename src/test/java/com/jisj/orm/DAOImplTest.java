@@ -8,10 +8,20 @@ import org.sqlite.SQLiteErrorCode;
 import org.sqlite.SQLiteException;
 
 import java.io.IOException;
+import javax.sql.DataSource;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.LogManager;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -178,8 +188,14 @@ class DAOImplTest {
     @Order(7)
     void delete() throws SQLException {
         int id = me.getId();
+        assertTrue(dao.exists(id));
+        assertTrue(dao.existsWhere("id=?", id));
+        assertTrue(dao.existsWhere(null));
+        long count = dao.count();
         assertEquals(1, dao.delete(id));
         assertNull(dao.read(id));
+        assertFalse(dao.exists(id));
+        assertEquals(count - 1, dao.count());
     }
 
 
@@ -207,6 +223,39 @@ class DAOImplTest {
         assertEquals(3, dao.createAll(List.of(e1, e2, e3)));
     }
 
+    @Test
+    void createAll_batch() throws SQLException {
+        List<MainEntity> generated = List.of(
+                MainEntity.builder().stringField("batch1").stringUniqueField("batchUnique1").doubleField(0.0).build(),
+                MainEntity.builder().stringField("batch2").stringUniqueField("batchUnique2").doubleField(0.0).build(),
+                MainEntity.builder().stringField("batch3").stringUniqueField("batchUnique3").doubleField(0.0).build());
+        assertEquals(3, dao.createAll(generated, 2));
+        generated.forEach(entity -> assertNotNull(entity.getId()));
+        assertEquals(generated.get(2), dao.read(generated.get(2).getId()));
+
+        List<MainEntity> withId = List.of(
+                MainEntity.builder().id(701).stringField("batch701").stringUniqueField("batchUnique701").build(),
+                MainEntity.builder().id(702).stringField("batch702").stringUniqueField("batchUnique702").doubleField(0.0).build());
+        assertEquals(2, dao.createAll(withId, 2));
+        assertEquals(withId.get(1), dao.read(702));
+
+        //the second entity is duplicated: nothing should be inserted
+        MainEntity fresh = MainEntity.builder().stringField("batch4").stringUniqueField("batchUnique4").build();
+        MainEntity duplicate = MainEntity.builder().stringField("batch5").stringUniqueField("batchUnique1").build();
+        EntityBatchException e = assertThrowsExactly(EntityBatchException.class,
+                () -> dao.createAll(List.of(fresh, duplicate), 10));
+        assertSame(duplicate, e.getFailedEntity());
+        assertEquals(1, e.getFailedIndex());
+        assertNull(fresh.getId());
+        assertEquals(0, dao.findAll("UniqueField=?", "batchUnique4").size());
+
+        MainEntity duplicateId = MainEntity.builder().id(702).stringField("batch703").stringUniqueField("batchUnique703").build();
+        e = assertThrowsExactly(EntityBatchException.class,
+                () -> dao.createAll(List.of(MainEntity.builder().id(704).stringUniqueField("batchUnique704").build(), duplicateId), 10));
+        assertSame(duplicateId, e.getFailedEntity());
+        assertNull(dao.read(704));
+    }
+
     @Test
     @Order(9)
     void readAll() throws SQLException {
@@ -239,6 +288,15 @@ class DAOImplTest {
         assertEquals(e1, dao.read(101));
         assertEquals(List.of(e1, e2, e3), dao.readAll().toList());
 
+        //more IDs than one IN list holds
+        List<Integer> ids = IntStream.rangeClosed(1, 2 * DAOImpl.MAX_IN_LIST_SIZE + 1)
+                .map(i -> 2 * DAOImpl.MAX_IN_LIST_SIZE + 2 - i)
+                .boxed()
+                .toList();
+        assertEquals(Map.of(101, e1, 102, e2, 103, e3), dao.readAll(ids));
+        assertEquals(List.of(e3, e2, e1), dao.readAllInOrder(ids));
+        assertEquals(List.of(e2, e1, e2), dao.readAllInOrder(List.of(102, 101, 5, 102)));
+
     }
 
     @Test
@@ -325,4 +383,266 @@ class DAOImplTest {
         assertEquals(1, embedDao.delete(embed.getId()));
         assertEquals(0, joinDao.findAll("OWNER_ID=?", me.getId()).size());
     }
-}
\ No newline at end of file
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void compactJoinTable() throws SQLException {
+        DAO<EmbeddedEntity, Integer> embedDao = (DAO<EmbeddedEntity, Integer>) db.getGlobal().getDao(EmbeddedEntity.class);
+        EntityProfile joinProfile = EntityProfileFactory.createJoinTableProfile(dao.getProfile().getColumnByField("embeddedList"),
+                dao.getProfile(), embedDao.getProfile(), true);
+        joinProfile.setTableName("compact_MainTable_EmbeddedTable");
+        EntityProfileFactory.buildStatements(joinProfile);
+        DAOImpl<JoinTableEntityIntID, Integer> joinDao = (DAOImpl<JoinTableEntityIntID, Integer>) DAOFactory.createDAO(db.getDataSource(), joinProfile);
+        DBManager.createTableIfNotExists(joinDao);
+        try {
+            assertTrue(DBManager.tableEquals(joinDao));
+            assertTrue(joinDao.withConnection(connection -> DBManager.getCreateStatement(connection, joinProfile.getTableName()))
+                    .endsWith("WITHOUT ROWID"));
+            MainEntity owner = MainEntity.builder().stringField("compact").stringUniqueField("compactUnique").doubleField(0.0).build();
+            dao.create(owner);
+            EmbeddedEntity e1 = EmbeddedEntity.builder().firstField("compact1").build();
+            EmbeddedEntity e2 = EmbeddedEntity.builder().firstField("compact2").build();
+            embedDao.createAll(List.of(e1, e2));
+
+            String insert = StatementBuilder.buildJoinInsertStatement(joinProfile);
+            assertEquals(2, joinDao.updateBatch(insert, List.of(new Object[]{owner.getId(), e2.getId()}, new Object[]{owner.getId(), e1.getId()})));
+            assertEquals(0, joinDao.updateBatch(insert, List.<Object[]>of(new Object[]{owner.getId(), e1.getId()})));
+            //only an existing link is skipped
+            assertThrows(SQLException.class, () -> joinDao.updateBatch(insert, List.<Object[]>of(new Object[]{owner.getId(), null})));
+            assertEquals(List.of(e1, e2), embedDao.findJoined(joinProfile, List.of(owner.getId())).get(owner.getId()));
+            assertEquals(1, joinDao.findAll("EMBEDDED_ID=?", e2.getId()).size());
+            assertEquals(1, joinDao.deleteAll("OWNER_ID=? AND EMBEDDED_ID=?", owner.getId(), e1.getId()));
+            assertEquals(List.of(e2), embedDao.findJoined(joinProfile, List.of(owner.getId())).get(owner.getId()));
+
+            //no ID
+            assertNull(joinProfile.getIdColumn());
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.read(1));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.readAll(List.of(1)));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.exists(1));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.delete(1));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.updateField(1, "ownerId", owner.getId()));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> joinDao.page(new String[0], null, 10));
+        } finally {
+            DBManager.dropTableIfExists(joinDao);
+        }
+    }
+
+    @Test
+    void slowStatement() throws SQLException {
+        final String sql = "SELECT * FROM MainTable WHERE id=?";
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger.getLogger(DAOImpl.class.getName()).addHandler(handler);
+        try {
+            dao.setSlowStatementThreshold(1);
+            //the reading of the result is timed with the statement
+            dao.withReadConnection(connection -> dao.doQuery(connection, sql, ps -> ps.setInt(1, 12345), rs -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return rs.stream().count();
+            }));
+        } finally {
+            dao.setSlowStatementThreshold(0);
+            Logger.getLogger(DAOImpl.class.getName()).removeHandler(handler);
+        }
+        LogRecord slow = records.stream().filter(r -> r.getLevel() == Level.WARNING).findFirst().orElseThrow();
+        assertTrue(slow.getMessage().startsWith("Slow statement"));
+        assertTrue(slow.getMessage().contains("12345"));
+        assertThrowsExactly(IllegalArgumentException.class, () -> dao.setSlowStatementThreshold(-1));
+    }
+
+    @Test
+    void stream() throws SQLException {
+        AtomicInteger open = new AtomicInteger();
+        DataSource counting = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("getConnection")) return method.invoke(db.getDataSource(), args);
+                    Connection connection = db.getDataSource().getConnection();
+                    open.incrementAndGet();
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                            (p, m, a) -> {
+                                if (m.getName().equals("close")) open.decrementAndGet();
+                                try {
+                                    return m.invoke(connection, a);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                            });
+                });
+        DAOImpl<MainEntity, Integer> streamDao = new DAOImpl<>(counting, MainEntity.class);
+        streamDao.setFetchSize(2);
+        for (int i = 0; i < 5; i++)
+            dao.create(MainEntity.builder().stringField("stream").stringDefaultField("stream" + i)
+                    .stringUniqueField("Stream" + i).doubleField(0.0).build());
+
+        //short-circuit
+        try (Stream<MainEntity> stream = streamDao.stream("stringField=?", "UniqueField DESC", "stream")) {
+            assertEquals("Stream4", stream.findFirst().orElseThrow().getStringUniqueField());
+            assertEquals(1, open.get());
+        }
+        assertEquals(0, open.get());
+        //drained
+        assertEquals(5, streamDao.stream("stringField=?", null, "stream").count());
+        assertEquals(0, open.get());
+        //failed
+        assertThrows(SQLException.class, () -> streamDao.stream("noSuchColumn=?", null, 1));
+        assertEquals(0, open.get());
+        assertThrowsExactly(IllegalStateException.class, () -> streamDao.stream(null, null)
+                .forEach(e -> {
+                    throw new IllegalStateException();
+                }));
+        assertEquals(0, open.get());
+    }
+
+    record IdName(Integer id, String stringField, double doubleField) {
+    }
+
+    @SuppressWarnings("unused")
+    static class UniqueDto {
+        private int id;
+        private String UniqueField;
+        private String notAColumn = "unset";
+    }
+
+    @Test
+    void project() throws SQLException {
+        MainEntity entity = MainEntity.builder().stringField("project").stringUniqueField("Project1").doubleField(2.5)
+                .booleanField(true).build();
+        dao.create(entity);
+
+        assertEquals(List.of(new IdName(entity.getId(), "project", 2.5)), dao.project(IdName.class, "stringField=?", "project"));
+        UniqueDto dto = dao.project(UniqueDto.class, "id=?", entity.getId()).getFirst();
+        assertEquals(entity.getId(), dto.id);
+        assertEquals("Project1", dto.UniqueField);
+        assertEquals("unset", dto.notAColumn);
+
+        MainEntity partial = dao.findPartial(new String[]{"id", "stringUniqueField"}, "id=?", entity.getId()).getFirst();
+        assertEquals("Project1", partial.getStringUniqueField());
+        assertNull(partial.getStringField());
+        assertFalse(partial.isBooleanField());
+
+        assertThrowsExactly(IllegalArgumentException.class, () -> dao.project(String.class, null));
+        assertThrowsExactly(IllegalArgumentException.class, () -> dao.findPartial(new String[]{"embeddedList"}, null));
+    }
+
+    @Test
+    void cache() throws SQLException {
+        MainEntity entity = MainEntity.builder().stringField("cache").stringUniqueField("Cache1").doubleField(0.0).build();
+        dao.create(entity);
+        EntityCache cache = new EntityCache(dao.getProfile(), 2, Duration.ZERO);
+        dao.setCache(cache);
+        try {
+            MainEntity first = dao.read(entity.getId());
+            MainEntity second = dao.read(entity.getId());
+            assertEquals(entity, second);
+            assertNotSame(first, second);
+            assertEquals(1, cache.getStats().getHits());
+            //the callers do not share the cached instance
+            second.setStringField("changed");
+            assertEquals("cache", dao.read(entity.getId()).getStringField());
+
+            entity.setDoubleField(1.5);
+            dao.update(entity);
+            assertEquals(0, cache.size());
+            assertEquals(1.5, dao.read(entity.getId()).getDoubleField());
+
+            //not read inside a transaction, invalidated after it
+            try (Transaction tx = ((DBDataSource) db.getDataSource()).beginTransaction()) {
+                dao.updateField(entity.getId(), "doubleField", 2.5);
+                assertEquals(2.5, dao.read(entity.getId()).getDoubleField());
+                assertEquals(0, cache.size());
+                tx.rollback();
+            }
+            assertEquals(1.5, dao.read(entity.getId()).getDoubleField());
+
+            //the statements of the caller
+            dao.query("UPDATE MainTable SET doubleField=? WHERE id=? RETURNING *", 1.75, entity.getId());
+            assertEquals(1.75, dao.read(entity.getId()).getDoubleField());
+            dao.withConnection(connection -> dao.doUpdate(connection, "UPDATE MainTable SET doubleField=? WHERE id=?",
+                    ps -> {
+                        ps.setDouble(1, 1.5);
+                        ps.setInt(2, entity.getId());
+                    }, DAOImpl.RSWrapper::getUpdateCount));
+            assertEquals(1.5, dao.read(entity.getId()).getDoubleField());
+
+            MainEntity other1 = MainEntity.builder().stringField("cache").stringDefaultField("c2").stringUniqueField("Cache2").doubleField(0.0).build();
+            MainEntity other2 = MainEntity.builder().stringField("cache").stringDefaultField("c3").stringUniqueField("Cache3").doubleField(0.0).build();
+            dao.createAll(List.of(other1, other2));
+            assertEquals(3, dao.readAll(List.of(entity.getId(), other1.getId(), other2.getId())).size());
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.getStats().getEvictions());
+
+            dao.delete(other2.getId());
+            assertNull(dao.read(other2.getId()));
+            dao.deleteAll("stringField=?", "cache");
+            assertEquals(0, cache.size());
+            assertNull(dao.read(entity.getId()));
+        } finally {
+            dao.setCache(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void queryCache() throws SQLException {
+        DAOImpl<EmbeddedEntity, Integer> embedDao = (DAOImpl<EmbeddedEntity, Integer>) db.getGlobal().getDao(EmbeddedEntity.class);
+        QueryCache queryCache = new QueryCache(10);
+        dao.setQueryCache(queryCache);
+        embedDao.setQueryCache(queryCache);
+        try {
+            MainEntity entity = MainEntity.builder().stringField("queryCache").stringUniqueField("QueryCache1").doubleField(0.0).build();
+            dao.create(entity);
+            MainEntity first = dao.findAll("stringField=?", "queryCache").getFirst();
+            MainEntity second = dao.findAll("stringField=?", "queryCache").getFirst();
+            assertEquals(entity, second);
+            assertNotSame(first, second);
+            assertEquals(1, queryCache.getStats().getHits());
+            assertEquals(List.of(), dao.findAll("stringField=?", "queryCache2"));
+            assertEquals(1, queryCache.getStats().getHits());
+
+            dao.updateField(entity.getId(), "doubleField", 3.5);
+            assertEquals(3.5, dao.findAll("stringField=?", "queryCache").getFirst().getDoubleField());
+            dao.query("UPDATE MainTable SET doubleField=? WHERE id=? RETURNING *", 3.75, entity.getId());
+            assertEquals(3.75, dao.findAll("stringField=?", "queryCache").getFirst().getDoubleField());
+
+            //depends on the tables named in the SQL
+            final String sql = "SELECT * FROM MainTable WHERE stringField=? AND EXISTS (SELECT 1 FROM EmbeddedTable WHERE firstField=?)";
+            assertEquals(0, dao.query(sql, "queryCache", "queryCache").size());
+            EmbeddedEntity embedded = EmbeddedEntity.builder().firstField("queryCache").build();
+            embedDao.create(embedded);
+            assertEquals(1, dao.query(sql, "queryCache", "queryCache").size());
+            embedDao.delete(embedded.getId());
+            assertEquals(0, dao.query(sql, "queryCache", "queryCache").size());
+
+            //not used inside a transaction, stale after it
+            try (Transaction tx = ((DBDataSource) db.getDataSource()).beginTransaction()) {
+                dao.updateField(entity.getId(), "doubleField", 4.5);
+                assertEquals(4.5, dao.findAll("stringField=?", "queryCache").getFirst().getDoubleField());
+                tx.commit();
+            }
+            assertEquals(4.5, dao.findAll("stringField=?", "queryCache").getFirst().getDoubleField());
+
+            dao.deleteAll("stringField=?", "queryCache");
+            assertEquals(List.of(), dao.findAll("stringField=?", "queryCache"));
+        } finally {
+            dao.setQueryCache(null);
+            embedDao.setQueryCache(null);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.jisj.orm;
 
+import com.jisj.orm.jdbc.ConnectionPool;
 import org.junit.jupiter.api.Test;
 import org.sqlite.SQLiteDataSource;
 import org.sqlite.javax.SQLiteConnectionPoolDataSource;
@@ -7,7 +8,13 @@ import org.sqlite.javax.SQLiteConnectionPoolDataSource;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 import static com.jisj.orm.Const.TST_PATH;
 import static org.junit.jupiter.api.Assertions.*;
@@ -33,4 +40,205 @@ class DBDataSourceTest {
         DBDataSource.newDataSource(testDb).getConnection();
         assertTrue(Files.exists(testDb));
     }
-}
\ No newline at end of file
+
+    private static int count(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM t")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void pool() throws Exception {
+        Path testDb = TST_PATH.resolve("pool-db.sqlite");
+        Files.deleteIfExists(testDb);
+        try (DBDataSource ds = DBDataSource.newPooledDataSource(testDb)) {
+            ds.setReadConnections(2);
+            ds.setConnectionTimeout(Duration.ofMillis(200));
+            try (Connection writer = ds.getConnection(); Statement statement = writer.createStatement()) {
+                statement.execute("CREATE TABLE t (v INTEGER)");
+                statement.execute("INSERT INTO t VALUES (1)");
+            }
+            ConnectionPool pool = ds.getPool().orElseThrow();
+            assertThrowsExactly(IllegalStateException.class, () -> ds.setReadConnections(3));
+
+            //read-only connections
+            Connection r1 = ds.getReadConnection();
+            Connection r2 = ds.getReadConnection();
+            assertEquals(1.0, pool.getReaderUtilisation());
+            assertEquals(1, count(r1));
+            try (Statement statement = r2.createStatement()) {
+                assertThrows(SQLException.class, () -> statement.execute("INSERT INTO t VALUES (2)"));
+            }
+            assertThrowsExactly(SQLTransientConnectionException.class, ds::getReadConnection);
+            r1.close();
+            r2.close();
+            assertTrue(r1.isClosed());
+            assertEquals(2, pool.getIdleReaders());
+            ds.getReadConnection().close();
+            assertEquals(3, pool.getStats().getCreated());
+            assertEquals(1, pool.getStats().getTimeouts());
+
+            //one writer, reentrant for its thread
+            try (Connection w1 = ds.getConnection(); Connection ignored = ds.getConnection()) {
+                assertTrue(pool.isWriterBusy());
+                CompletableFuture<Boolean> other = CompletableFuture.supplyAsync(() -> {
+                    try (Connection connection = ds.getConnection()) {
+                        return !connection.isClosed();
+                    } catch (SQLException e) {
+                        return false;
+                    }
+                });
+                assertFalse(other.get());
+                assertEquals(1, count(w1));
+            }
+            assertFalse(pool.isWriterBusy());
+
+            //left transaction is rolled back
+            try (Connection writer = ds.getConnection(); Statement statement = writer.createStatement()) {
+                writer.setAutoCommit(false);
+                statement.execute("INSERT INTO t VALUES (3)");
+            }
+            try (Connection reader = ds.getReadConnection()) {
+                assertEquals(1, count(reader));
+            }
+            assertEquals(3, pool.getStats().getCreated());
+        }
+    }
+
+    @Test
+    void pool_noReaders() throws Exception {
+        Path testDb = TST_PATH.resolve("pool-no-readers-db.sqlite");
+        Files.deleteIfExists(testDb);
+        try (DBDataSource ds = DBDataSource.newPooledDataSource(testDb)) {
+            ds.setReadConnections(0);
+            ds.setConnectionTimeout(Duration.ofMillis(200));
+            try (Connection writer = ds.getConnection(); Statement statement = writer.createStatement()) {
+                statement.execute("CREATE TABLE t (v INTEGER)");
+                statement.execute("INSERT INTO t VALUES (1)");
+                //the writer thread reads by its connection
+                try (Connection reader = ds.getReadConnection()) {
+                    assertEquals(1, count(reader));
+                }
+            }
+            ConnectionPool pool = ds.getPool().orElseThrow();
+
+            //the read lease holds the writer and is released by another thread
+            Connection reader = ds.getReadConnection();
+            assertTrue(pool.isWriterBusy());
+            assertEquals(1, count(reader));
+            assertFalse(CompletableFuture.supplyAsync(() -> {
+                try (Connection connection = ds.getConnection()) {
+                    return !connection.isClosed();
+                } catch (SQLException e) {
+                    return false;
+                }
+            }).get());
+            CompletableFuture.runAsync(() -> {
+                try {
+                    reader.close();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }).get();
+            assertFalse(pool.isWriterBusy());
+            try (Connection writer = ds.getConnection()) {
+                assertEquals(1, count(writer));
+            }
+            assertEquals(1, pool.getStats().getCreated());
+
+            //nested leases of the reading thread share its connection
+            try (Connection outer = ds.getReadConnection()) {
+                try (Connection nested = ds.getReadConnection()) {
+                    assertEquals(1, count(nested));
+                }
+                try (Connection writer = ds.getConnection(); Statement statement = writer.createStatement()) {
+                    statement.execute("INSERT INTO t VALUES (2)");
+                    try (Connection nested = ds.getReadConnection()) {
+                        assertEquals(2, count(nested));
+                    }
+                }
+                assertTrue(pool.isWriterBusy());
+                assertEquals(2, count(outer));
+            }
+            assertFalse(pool.isWriterBusy());
+            try (Connection writer = ds.getConnection()) {
+                assertEquals(2, count(writer));
+            }
+        }
+    }
+
+    private static String pragma(Connection connection, String name) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA " + name)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    @Test
+    void pragmas() throws Exception {
+        Path testDb = TST_PATH.resolve("pragmas-db.sqlite");
+        Files.deleteIfExists(testDb);
+        try (DBDataSource ds = DBDataSource.newPooledDataSource(testDb)) {
+            ds.setPragmas("throughput");
+            try (Connection writer = ds.getConnection()) {
+                assertEquals("wal", pragma(writer, "journal_mode"));
+                assertEquals("1", pragma(writer, "synchronous"));
+            }
+            try (Connection reader = ds.getReadConnection()) {
+                assertEquals("wal", pragma(reader, "journal_mode"));
+                assertEquals("2", pragma(reader, "temp_store"));
+            }
+
+            //switched at runtime and back
+            ds.withPragmas(Pragmas.BULK_LOAD, () -> {
+                try (Connection writer = ds.getConnection(); Connection reader = ds.getReadConnection()) {
+                    assertEquals("0", pragma(writer, "synchronous"));
+                    assertEquals("0", pragma(reader, "synchronous"));
+                    assertEquals("10000", pragma(writer, "wal_autocheckpoint"));
+                }
+                return null;
+            });
+            assertSame(Pragmas.THROUGHPUT, ds.getPragmas());
+            try (Connection writer = ds.getConnection()) {
+                assertEquals("1", pragma(writer, "synchronous"));
+                assertEquals("1000", pragma(writer, "wal_autocheckpoint"));
+            }
+        }
+        //new connections of the not pooled data source
+        DBDataSource ds = DBDataSource.newDataSource(testDb);
+        ds.setPragmas(Pragmas.DURABLE);
+        try (Connection connection = ds.getConnection()) {
+            assertEquals("2", pragma(connection, "synchronous"));
+            assertEquals("5000", pragma(connection, "busy_timeout"));
+        }
+    }
+
+    @Test
+    void pragmas_restoreActual() throws Exception {
+        Path testDb = TST_PATH.resolve("pragmas-restore-db.sqlite");
+        Files.deleteIfExists(testDb);
+        try (DBDataSource ds = DBDataSource.newPooledDataSource(testDb)) {
+            try (Connection writer = ds.getConnection(); Statement statement = writer.createStatement()) {
+                statement.execute("PRAGMA cache_size=-3000");
+                assertEquals("delete", pragma(writer, "journal_mode"));
+            }
+            ds.withPragmas(Pragmas.BULK_LOAD, () -> {
+                try (Connection writer = ds.getConnection()) {
+                    assertEquals("wal", pragma(writer, "journal_mode"));
+                    assertEquals("-262144", pragma(writer, "cache_size"));
+                }
+                return null;
+            });
+            //the values before the switch, not the defaults
+            try (Connection writer = ds.getConnection()) {
+                assertEquals("delete", pragma(writer, "journal_mode"));
+                assertEquals("-3000", pragma(writer, "cache_size"));
+                assertEquals("2", pragma(writer, "synchronous"));
+                assertEquals("1000", pragma(writer, "wal_autocheckpoint"));
+            }
+        }
+    }
+}
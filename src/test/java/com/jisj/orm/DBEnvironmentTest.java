@@ -1,12 +1,18 @@
 package com.jisj.orm;
 
+import com.jisj.orm.entity.JoinTableEntity;
 import com.jisj.orm.repository.CRUDRepository;
+import com.jisj.orm.repository.JoinCRUDRepository;
+import com.jisj.orm.repository.PersistRepository;
+import com.jisj.orm.testdata.EmbeddedEntity;
+import com.jisj.orm.testdata.MainEntity;
 import com.jisj.orm.testdata.NestedEntity;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -37,4 +43,54 @@ class DBEnvironmentTest {
         assertEquals("System record", result.getFirst().getName());
         db.close();
     }
-}
\ No newline at end of file
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void compactJoinTables() throws DAOException {
+        DBEnvironment db = DBEnvironment.getInstance(DBDataSource.newDataSource(DBDataSource.StandardConnection.MEMORY_CACHE));
+        try {
+            db.setStartMode(DBEnvironment.StartMode.DROP_AND_CREATE);
+            db.setCompactJoinTables(true);
+            db.initializeEntities(MainEntity.class, EmbeddedEntity.class, NestedEntity.class);
+            PersistRepository<MainEntity, Integer> per = (PersistRepository<MainEntity, Integer>) db.getGlobal().getPersistRepository(MainEntity.class);
+            EmbeddedEntity e1 = EmbeddedEntity.builder().firstField("compact1").build();
+            EmbeddedEntity e2 = EmbeddedEntity.builder().firstField("compact2").build();
+            MainEntity main = MainEntity.builder().stringField("compact").stringUniqueField("compactUnique")
+                    .doubleField(0.0).embeddedList(List.of(e1, e2)).build();
+            per.save(main);
+
+            JoinCRUDRepository<JoinTableEntity<Integer>, Integer> joinCrud = (JoinCRUDRepository<JoinTableEntity<Integer>, Integer>)
+                    db.getGlobal().getCrudRepository("join_MainTable_with_EmbeddedTable");
+            List<JoinTableEntity<Integer>> joins = joinCrud.findAllEmbedded(main.getId());
+            assertEquals(2, joins.size());
+            assertTrue(joins.stream().allMatch(join -> join.getId() == null));
+            assertEquals(List.of(e1, e2), per.load(main.getId()).getEmbeddedList());
+
+            CRUDRepository<JoinTableEntity<Integer>, Integer> crud = (CRUDRepository<JoinTableEntity<Integer>, Integer>) joinCrud;
+            assertThrowsExactly(UnsupportedOperationException.class, () -> crud.get(1));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> crud.delete(1));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> crud.update(joins.getFirst()));
+            assertThrowsExactly(UnsupportedOperationException.class, () -> crud.refresh(joins.getFirst()));
+
+            main.setEmbeddedList(List.of(e2));
+            per.update(main);
+            assertEquals(List.of(e2), per.load(main.getId()).getEmbeddedList());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void setEntityCache() {
+        DBEnvironment db = DBEnvironment.getInstance(DBDataSource.newDataSource(DBDataSource.StandardConnection.MEMORY_CACHE));
+        try {
+            db.setStartMode(DBEnvironment.StartMode.DROP_AND_CREATE);
+            db.setEntityCache(EmbeddedEntity.class, 10, Duration.ofMinutes(1));
+            db.initializeEntities(MainEntity.class, EmbeddedEntity.class, NestedEntity.class);
+            assertNotNull(((DAOImpl<?, ?>) db.getGlobal().getDao(EmbeddedEntity.class)).getCache());
+            assertNull(((DAOImpl<?, ?>) db.getGlobal().getDao(MainEntity.class)).getCache());
+        } finally {
+            db.close();
+        }
+    }
+}
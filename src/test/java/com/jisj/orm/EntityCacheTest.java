@@ -0,0 +1,61 @@
+package com.jisj.orm;
+
+import com.jisj.orm.testdata.MainEntity;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityCacheTest {
+    private final EntityProfile profile = EntityProfileFactory.createProfile(MainEntity.class);
+
+    private MainEntity entity(int id) {
+        return MainEntity.builder().id(id).stringField("field" + id).build();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        EntityCache cache = new EntityCache(profile, 2, Duration.ZERO);
+        cache.put(entity(1), cache.stamp());
+        cache.put(entity(2), cache.stamp());
+        assertNotNull(cache.get(1));
+        cache.put(entity(3), cache.stamp());
+
+        assertNull(cache.get(2));
+        assertEquals(entity(1), cache.get(1));
+        assertEquals(entity(3), cache.get(3));
+        assertEquals(1, cache.getStats().getEvictions());
+        assertEquals(3, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    void expires() throws InterruptedException {
+        EntityCache cache = new EntityCache(profile, 10, Duration.ofMillis(1));
+        cache.put(entity(1), cache.stamp());
+        Thread.sleep(20);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getStats().getExpirations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void putAfterInvalidation() {
+        EntityCache cache = new EntityCache(profile, 10, Duration.ZERO);
+        long stamp = cache.stamp();
+        cache.invalidate(1);
+        cache.put(entity(1), stamp);
+        assertEquals(0, cache.size());
+
+        cache.put(entity(1), cache.stamp());
+        cache.invalidateAll();
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    void illegalArguments() {
+        assertThrowsExactly(IllegalArgumentException.class, () -> new EntityCache(profile, 0, Duration.ZERO));
+        assertThrowsExactly(IllegalArgumentException.class, () -> new EntityCache(profile, 1, Duration.ofSeconds(-1)));
+    }
+}
@@ -3,6 +3,8 @@ package com.jisj.orm;
 import com.jisj.orm.testdata.*;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class EntityProfileTest {
@@ -171,4 +173,35 @@ class EntityProfileTest {
         assertEquals(2, spec.getForeignKeys().size());
     }
 
-}
\ No newline at end of file
+
+    @Test
+    void column_accessors() {
+        EntityProfile p = EntityProfileFactory.createProfile(DefaultValuesEntitySubClass.class);
+        Object entity = p.newEntityInstance();
+        assertSame(DefaultValuesEntitySubClass.class, entity.getClass());
+        //primitive field of the superclass
+        p.getColumnByField("token").setValue(entity, 12);
+        assertEquals(12, p.getColumnByField("token").getValue(entity));
+        p.getColumnByField("stringField").setValue(entity, "value");
+        assertEquals("value", p.getColumnByField("stringField").getValue(entity));
+        assertThrows(ClassCastException.class, () -> p.getColumnByField("stringField").setValue(entity, 1));
+
+        Object copy = p.newEntityInstance();
+        p.copy(entity, copy);
+        assertEquals("value", p.getColumnByField("stringField").getValue(copy));
+        assertEquals(12, p.getColumnByField("token").getValue(copy));
+    }
+
+    @Test
+    void column_views() {
+        EntityProfile p = EntityProfileFactory.createProfile(MainEntity.class);
+        List<EntityProfile.Column> columns = p.getCreateTableColumnList();
+        assertSame(columns, p.getCreateTableColumnList());
+        assertEquals(p.getCreateTableColumns().toList(), columns);
+        for (int i = 1; i < columns.size(); i++)
+            assertTrue(columns.get(i - 1).getOrder() < columns.get(i).getOrder());
+        assertTrue(columns.stream().noneMatch(EntityProfile.Column::isManyToManyOwner));
+        assertEquals(2, p.getManyToManyColumnList().size());
+        assertThrows(UnsupportedOperationException.class, () -> columns.remove(0));
+    }
+}
@@ -0,0 +1,52 @@
+package com.jisj.orm;
+
+import org.junit.jupiter.api.Test;
+import org.sqlite.SQLiteConfig;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PragmasTest {
+
+    @Test
+    void statements() {
+        Pragmas pragmas = Pragmas.builder()
+                .pageSize(8192)
+                .journalMode(SQLiteConfig.JournalMode.WAL)
+                .synchronous(SQLiteConfig.SynchronousMode.NORMAL)
+                .walAutocheckpoint(500)
+                .build();
+        assertEquals(List.of("PRAGMA page_size=8192", "PRAGMA journal_mode=WAL", "PRAGMA synchronous=NORMAL",
+                "PRAGMA wal_autocheckpoint=500"), pragmas.statements(true));
+        assertEquals(List.of("PRAGMA synchronous=NORMAL", "PRAGMA wal_autocheckpoint=500"), pragmas.statements(false));
+        assertEquals(List.of(), Pragmas.builder().build().statements(true));
+    }
+
+    @Test
+    void preset() {
+        assertSame(Pragmas.DURABLE, Pragmas.preset("durable"));
+        assertSame(Pragmas.THROUGHPUT, Pragmas.preset("throughput"));
+        assertSame(Pragmas.BULK_LOAD, Pragmas.preset("bulk-load"));
+        assertEquals(SQLiteConfig.SynchronousMode.OFF, Pragmas.BULK_LOAD.synchronous());
+        assertEquals(SQLiteConfig.JournalMode.WAL, Pragmas.BULK_LOAD.journalMode());
+        assertThrowsExactly(IllegalArgumentException.class, () -> Pragmas.preset("fast"));
+    }
+
+    @Test
+    void orElse() {
+        Pragmas journal = Pragmas.builder().journalMode(SQLiteConfig.JournalMode.DELETE).cacheSize(-100).build();
+        Pragmas merged = Pragmas.THROUGHPUT.toBuilder().journalMode(null).build().orElse(journal);
+        assertEquals(SQLiteConfig.JournalMode.DELETE, merged.journalMode());
+        assertEquals(Pragmas.THROUGHPUT.cacheSize(), merged.cacheSize());
+        assertSame(Pragmas.THROUGHPUT, Pragmas.THROUGHPUT.orElse(journal));
+    }
+
+    @Test
+    void illegalValues() {
+        assertThrowsExactly(IllegalArgumentException.class, () -> Pragmas.builder().pageSize(1000).build());
+        assertThrowsExactly(IllegalArgumentException.class, () -> Pragmas.builder().mmapSize(-1L).build());
+        assertThrowsExactly(IllegalArgumentException.class, () -> Pragmas.builder().busyTimeout(-1).build());
+        assertThrowsExactly(IllegalArgumentException.class, () -> Pragmas.builder().walAutocheckpoint(-1).build());
+    }
+}
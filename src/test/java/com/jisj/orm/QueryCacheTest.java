@@ -0,0 +1,104 @@
+package com.jisj.orm;
+
+import com.jisj.orm.testdata.EmbeddedEntity;
+import com.jisj.orm.testdata.MainEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryCacheTest {
+    private final EntityProfile mainProfile = EntityProfileFactory.createProfile(MainEntity.class);
+    private final EntityProfile embeddedProfile = EntityProfileFactory.createProfile(EmbeddedEntity.class);
+    private final EntityProfile joinProfile = EntityProfileFactory.createJoinTableProfile(
+            mainProfile.getColumnByField("embeddedList"), mainProfile, embeddedProfile);
+    private final AtomicInteger reads = new AtomicInteger();
+    private QueryCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new QueryCache(2);
+        cache.register(mainProfile);
+        cache.register(embeddedProfile);
+        cache.register(joinProfile);
+        reads.set(0);
+    }
+
+    private List<MainEntity> readMain(String sql, Object... args) throws SQLException {
+        return cache.computeIfAbsent(mainProfile, sql, args, () -> {
+            reads.incrementAndGet();
+            return List.of(MainEntity.builder().id(1).stringField("query").build());
+        });
+    }
+
+    @Test
+    void cachedByStatementAndArgs() throws SQLException {
+        List<MainEntity> first = readMain("SELECT * FROM MainTable WHERE id=?", 1);
+        first.getFirst().setStringField("changed");
+        assertEquals("query", readMain("SELECT * FROM MainTable WHERE id=?", 1).getFirst().getStringField());
+        assertEquals(1, reads.get());
+        readMain("SELECT * FROM MainTable WHERE id=?", 2);
+        assertEquals(2, reads.get());
+        assertEquals(1, cache.getStats().getHits());
+    }
+
+    @Test
+    void invalidatedByTables() throws SQLException {
+        final String sql = "SELECT * FROM MainTable WHERE id IN (SELECT id FROM embeddedtable)";
+        readMain(sql);
+        cache.invalidate("OtherTable");
+        readMain(sql);
+        assertEquals(1, reads.get());
+        cache.invalidate("EmbeddedTable");
+        readMain(sql);
+        assertEquals(2, reads.get());
+        cache.invalidate("MainTable");
+        readMain(sql);
+        assertEquals(3, reads.get());
+    }
+
+    @Test
+    void invalidatedByReferencedTables() throws SQLException {
+        final String sql = "SELECT * FROM " + joinProfile.getTableName();
+        cache.computeIfAbsent(joinProfile, sql, new Object[0], () -> {
+            reads.incrementAndGet();
+            return List.of();
+        });
+        //rows of the join table are deleted by the cascade
+        cache.invalidate("EmbeddedTable");
+        cache.computeIfAbsent(joinProfile, sql, new Object[0], () -> {
+            reads.incrementAndGet();
+            return List.of();
+        });
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    void notCachedWhenWrittenWhileRead() throws SQLException {
+        cache.computeIfAbsent(mainProfile, "SELECT * FROM MainTable", new Object[0], () -> {
+            cache.invalidate("MainTable");
+            return List.of();
+        });
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws SQLException {
+        readMain("SELECT * FROM MainTable WHERE id=?", 1);
+        readMain("SELECT * FROM MainTable WHERE id=?", 2);
+        readMain("SELECT * FROM MainTable WHERE id=?", 1);
+        readMain("SELECT * FROM MainTable WHERE id=?", 3);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStats().getEvictions());
+        readMain("SELECT * FROM MainTable WHERE id=?", 1);
+        assertEquals(3, reads.get());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertThrowsExactly(IllegalArgumentException.class, () -> new QueryCache(0));
+    }
+}
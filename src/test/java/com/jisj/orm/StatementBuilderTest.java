@@ -1,9 +1,12 @@
 package com.jisj.orm;
 
 import org.junit.jupiter.api.Test;
+import com.jisj.orm.testdata.CustomValuesEntity;
 import com.jisj.orm.testdata.EmbeddedEntity;
 import com.jisj.orm.testdata.MainEntity;
 
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class StatementBuilderTest {
@@ -69,4 +72,68 @@ class StatementBuilderTest {
         assertEquals("DROP TABLE MainTable", StatementBuilder.buildDropTableStatement(ep, false));
         assertEquals("DROP TABLE IF EXISTS MainTable", StatementBuilder.buildDropTableStatement(ep, true));
     }
-}
\ No newline at end of file
+
+    @Test
+    void entityStatements() {
+        EntityStatements st = EntityProfileFactory.createProfile(CustomValuesEntity.class).getStatements();
+        assertEquals("SELECT * FROM CustomTable\nWHERE IDColumn=?", st.readById());
+        assertEquals("DELETE FROM CustomTable\nWHERE IDColumn=?", st.deleteById());
+        assertEquals("UPDATE CustomTable SET String=?\nWHERE IDColumn=?", st.updateFieldById("stringField"));
+        assertEquals("SELECT EXISTS(SELECT 1 FROM CustomTable WHERE IDColumn=?)", st.existsById());
+        assertEquals("SELECT COUNT(*) FROM CustomTable", st.count());
+        assertThrowsExactly(IllegalArgumentException.class, () -> st.updateFieldById("unknown"));
+    }
+
+    @Test
+    void buildKeysetPageStatement() {
+        List<EntityProfile.Column> keys = List.of(ep.getColumn("stringField"), ep.getIdColumn());
+        assertEquals("SELECT * FROM MainTable\nORDER BY stringField,id\nLIMIT ?",
+                StatementBuilder.buildKeysetPageStatement(ep, keys, false));
+        assertEquals("SELECT * FROM MainTable\nWHERE (stringField,id)>(?,?)\nORDER BY stringField,id\nLIMIT ?",
+                StatementBuilder.buildKeysetPageStatement(ep, keys, true));
+        assertEquals("SELECT * FROM MainTable\nWHERE id>?\nORDER BY id\nLIMIT ?",
+                StatementBuilder.buildKeysetPageStatement(ep, List.of(ep.getIdColumn()), true));
+    }
+
+    @Test
+    void buildUpsertStatement() {
+        String st = StatementBuilder.buildUpsertStatement(ep);
+        assertTrue(st.startsWith(StatementBuilder.buildInsertStatement(ep) + "\nON CONFLICT(id) DO UPDATE SET "));
+        assertTrue(st.contains("stringField=excluded.stringField"));
+        assertFalse(st.contains("id=excluded.id"));
+        assertEquals(ep.getUpdatablePrimitiveColumns().count(), st.split("=excluded\\.").length - 1);
+    }
+
+    @Test
+    void buildJoinFetchStatement() {
+        String st = StatementBuilder.buildJoinFetchStatement(embed, ep.getColumnByField("embeddedListDefault").getJoinTableProfile());
+        assertEquals("""
+                SELECT t.*,j.MainTable_Id FROM EmbeddedTable t
+                JOIN MainTable_EmbeddedTable j ON t.id=j.EmbeddedTable_Id""", st);
+    }
+
+    @Test
+    void buildJoinInsertStatement() {
+        EntityProfile jp = ep.getColumnByField("embeddedListDefault").getJoinTableProfile();
+        assertEquals("""
+                        INSERT INTO MainTable_EmbeddedTable (MainTable_Id,EmbeddedTable_Id) VALUES (?,?)
+                        ON CONFLICT(MainTable_Id,EmbeddedTable_Id) DO NOTHING""",
+                StatementBuilder.buildJoinInsertStatement(jp));
+        assertEquals("DELETE FROM MainTable_EmbeddedTable\nWHERE MainTable_Id=? AND EmbeddedTable_Id=?",
+                StatementBuilder.buildJoinDeleteStatement(jp));
+    }
+
+    @Test
+    void buildCreateTableStatement_compactJoin() {
+        EntityProfile jp = EntityProfileFactory.createJoinTableProfile(ep.getColumnByField("embeddedListDefault"), ep, embed, true);
+        String st = StatementBuilder.buildCreateTableStatement(jp, true);
+        assertFalse(st.contains("\"id\"\t"));
+        assertFalse(st.contains("UNIQUE("));
+        assertTrue(st.contains("PRIMARY KEY(\"MainTable_Id\",\"EmbeddedTable_Id\")"));
+        assertTrue(st.endsWith(") WITHOUT ROWID"));
+        assertTrue(StatementBuilder.buildUpsertStatement(jp).endsWith("\nON CONFLICT(MainTable_Id,EmbeddedTable_Id) DO NOTHING"));
+        assertNull(jp.getStatements().readById());
+        assertEquals(List.of("CREATE INDEX IF NOT EXISTS MainTable_EmbeddedTable_EmbeddedTable_Id_MainTable_Id ON MainTable_EmbeddedTable (\"EmbeddedTable_Id\",\"MainTable_Id\")"),
+                StatementBuilder.buildCreateIndexStatements(jp, true));
+    }
+}
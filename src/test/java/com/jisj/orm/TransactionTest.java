@@ -0,0 +1,135 @@
+package com.jisj.orm;
+
+import com.jisj.orm.repository.CRUDRepository;
+import com.jisj.orm.repository.PersistRepository;
+import com.jisj.orm.testdata.EmbeddedEntity;
+import com.jisj.orm.testdata.MainEntity;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.LogManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionTest {
+    private static DBEnvironment db;
+    private static CRUDRepository<MainEntity, Integer> crud;
+    private static PersistRepository<MainEntity, Integer> per;
+
+    @SuppressWarnings("unchecked")
+    @BeforeAll
+    static void setUp() throws IOException {
+        InputStream ins = TransactionTest.class.getClassLoader().getResourceAsStream("log-test.properties");
+        LogManager.getLogManager().readConfiguration(ins);
+
+        db = DBEnvironment.getInstance(DBDataSource.newPooledDataSource(DBDataSource.StandardConnection.MEMORY_CACHE));
+        db.setStartMode(DBEnvironment.StartMode.DROP_AND_CREATE);
+        db.initializeEntities(MainEntity.class, EmbeddedEntity.class);
+        crud = (CRUDRepository<MainEntity, Integer>) db.getGlobal().getCrudRepository(MainEntity.class);
+        per = (PersistRepository<MainEntity, Integer>) db.getGlobal().getPersistRepository(MainEntity.class);
+    }
+
+    @AfterAll
+    static void close() {
+        db.close();
+    }
+
+    @Test
+    void inTransaction_commit() throws DAOException {
+        MainEntity e1 = MainEntity.builder().stringField("tx1").stringUniqueField("txUnique1").build();
+        MainEntity e2 = MainEntity.builder().stringField("tx2").stringUniqueField("txUnique2").build();
+        db.inTransaction(() -> {
+            crud.add(e1);
+            crud.add(e2);
+            assertTrue(db.getDataSource().getTransaction().isPresent());
+            return null;
+        });
+        assertTrue(db.getDataSource().getTransaction().isEmpty());
+        assertTrue(crud.getOptional(e1.getId()).isPresent());
+        assertTrue(crud.getOptional(e2.getId()).isPresent());
+    }
+
+    @Test
+    void inTransaction_rollback() {
+        MainEntity e1 = MainEntity.builder().stringField("tx3").stringUniqueField("txUnique3").build();
+        assertThrowsExactly(IllegalStateException.class, () -> db.inTransaction(() -> {
+            crud.add(e1);
+            throw new IllegalStateException("Rollback");
+        }));
+        assertTrue(db.getDataSource().getTransaction().isEmpty());
+        assertTrue(crud.findAll("UniqueField=?", "txUnique3").isEmpty());
+    }
+
+    @Test
+    void sharedConnection() throws SQLException {
+        try (Transaction tx = db.getDataSource().beginTransaction()) {
+            assertSame(tx.getConnection(), db.getDataSource().getConnection());
+            db.getDataSource().getConnection().close();
+            assertFalse(tx.getConnection().isClosed());
+            assertThrowsExactly(IllegalStateException.class, () -> db.getDataSource().beginTransaction());
+            tx.rollback();
+            assertFalse(tx.isActive());
+        }
+        assertTrue(db.getDataSource().getTransaction().isEmpty());
+    }
+
+    @Test
+    void afterCompletion() throws SQLException {
+        Connection physical = db.getDataSource().getConnection();
+        Connection failing = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    try {
+                        Object result = method.invoke(physical, args);
+                        if (method.getName().equals("close")) throw new SQLException("Close error");
+                        return result;
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        AtomicInteger completed = new AtomicInteger();
+        Transaction tx = new Transaction(db.getDataSource(), failing);
+        tx.afterCompletion(completed::incrementAndGet);
+        tx.afterCompletion(() -> {
+            throw new IllegalStateException("Action error");
+        });
+        tx.afterCompletion(completed::incrementAndGet);
+        //the actions are performed even if the connection is not closed
+        assertThrowsExactly(IllegalStateException.class, tx::close);
+        assertEquals(2, completed.get());
+        assertTrue(physical.isClosed());
+    }
+
+    @Test
+    void statementCache() throws DAOException {
+        MainEntity e1 = MainEntity.builder().stringField("tx5").stringUniqueField("txUnique5").build();
+        crud.add(e1);
+        long hits = db.getDataSource().getStatementCacheStats().getHits();
+        db.inTransaction(() -> {
+            for (int i = 0; i < 3; i++)
+                assertEquals("tx5", crud.get(e1.getId()).getStringField());
+            return null;
+        });
+        assertEquals(hits + 2, db.getDataSource().getStatementCacheStats().getHits());
+    }
+
+    @Test
+    void persistInTransaction() throws DAOException {
+        MainEntity main = MainEntity.builder().stringField("tx4").stringUniqueField("txUnique4").build();
+        main.setEmbeddedList(List.of(EmbeddedEntity.builder().firstField("txEmbedded1").build(),
+                EmbeddedEntity.builder().firstField("txEmbedded2").build()));
+        Integer id = db.inTransaction(() -> {
+            per.save(main);
+            return main.getId();
+        });
+        assertEquals(2, per.load(id).getEmbeddedList().size());
+    }
+}
@@ -0,0 +1,140 @@
+package com.jisj.orm;
+
+import com.jisj.orm.testdata.TypedEntity;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.logging.LogManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TypeCodecsTest {
+    private static DBEnvironment db;
+    private static DAO<TypedEntity, Integer> dao;
+
+    @SuppressWarnings("unchecked")
+    @BeforeAll
+    static void setUp() throws IOException {
+        InputStream ins = TypeCodecsTest.class.getClassLoader().getResourceAsStream("log-test.properties");
+        LogManager.getLogManager().readConfiguration(ins);
+
+        TypeCodecs.register(LocalDate.class, new TypeCodec<>() {
+            @Override
+            public LocalDate read(ResultSet resultSet, int columnIndex) throws SQLException {
+                String value = resultSet.getString(columnIndex);
+                return value == null ? null : LocalDate.parse(value);
+            }
+
+            @Override
+            public void bind(PreparedStatement ps, int parameterIndex, LocalDate value) throws SQLException {
+                ps.setString(parameterIndex, value.toString());
+            }
+
+            @Override
+            public String getDataType() {
+                return "TEXT";
+            }
+        });
+        db = DBEnvironment.getInstance(DBDataSource.newPooledDataSource(DBDataSource.StandardConnection.MEMORY_CACHE));
+        db.setStartMode(DBEnvironment.StartMode.DROP_AND_CREATE);
+        db.initializeEntities(TypedEntity.class);
+        dao = (DAO<TypedEntity, Integer>) db.getGlobal().getDao(TypedEntity.class);
+    }
+
+    @AfterAll
+    static void close() {
+        db.close();
+    }
+
+    @Test
+    void read_and_bind() throws SQLException {
+        TypedEntity entity = new TypedEntity();
+        entity.setIntField(7);
+        entity.setLongField(Long.MAX_VALUE);
+        entity.setBoxedLongField(-5L);
+        entity.setDoubleField(1.5);
+        entity.setBoxedFloatField(2.5F);
+        entity.setBooleanField(true);
+        entity.setDateField(LocalDate.of(2024, 2, 29));
+        assertEquals(1, dao.create(entity));
+
+        assertEquals(entity, dao.read(entity.getId()));
+        assertEquals(entity, dao.findAll("longField=? AND dateField=?", Long.MAX_VALUE, LocalDate.of(2024, 2, 29)).getFirst());
+    }
+
+    @Test
+    void nulls() throws SQLException {
+        TypedEntity entity = new TypedEntity();
+        dao.create(entity);
+        TypedEntity found = dao.read(entity.getId());
+        assertNull(found.getDateField());
+        assertEquals(0L, found.getBoxedLongField());
+    }
+
+    @Test
+    void unknown_types() {
+        assertThrowsExactly(IllegalArgumentException.class, () -> TypeCodecs.find(Object.class));
+        assertThrowsExactly(IllegalStateException.class, () -> TypeCodecs.forValue(new Object()));
+        assertSame(TypeCodecs.find(Integer.class), TypeCodecs.forValue(1));
+        assertEquals("TEXT", new SQLiteDialect().getDataType(LocalDate.class.getName()));
+    }
+
+    interface Marked {
+    }
+
+    static class Base implements Marked {
+    }
+
+    static class Derived extends Base {
+    }
+
+    @Test
+    void forValue_order() {
+        TypeCodec<Marked> markedCodec = new TypeCodec<>() {
+            @Override
+            public Marked read(ResultSet resultSet, int columnIndex) {
+                return null;
+            }
+
+            @Override
+            public void bind(PreparedStatement ps, int parameterIndex, Marked value) {
+            }
+        };
+        TypeCodecs.register(Marked.class, markedCodec);
+        assertSame(markedCodec, TypeCodecs.forValue(new Derived()));
+        TypeCodec<Base> baseCodec = new TypeCodec<>() {
+            @Override
+            public Base read(ResultSet resultSet, int columnIndex) {
+                return null;
+            }
+
+            @Override
+            public void bind(PreparedStatement ps, int parameterIndex, Base value) {
+            }
+        };
+        TypeCodecs.register(Base.class, baseCodec);
+        //the superclass goes before the interface
+        assertSame(baseCodec, TypeCodecs.forValue(new Derived()));
+        assertSame(markedCodec, TypeCodecs.forValue(new Marked() {
+        }));
+    }
+
+    @Test
+    void codecs_resolvedByProfile() {
+        EntityProfile profile = EntityProfileFactory.createProfile(TypedEntity.class);
+        EntityProfile.Column column = profile.getColumnByField("dateField");
+        ColumnCodec codec = column.getCodec();
+        assertSame(codec, column.getCodec());
+        column.setTargetJavaType(Object.class);
+        assertThrowsExactly(IllegalArgumentException.class, column::getCodec);
+        column.setTargetJavaType(LocalDate.class);
+        assertNotSame(codec, column.getCodec());
+    }
+}
@@ -0,0 +1,78 @@
+package com.jisj.orm.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementCacheTest {
+    private static final String SELECT = "SELECT v FROM t WHERE id=?";
+
+    private static Connection newConnection(int size, StatementCache.Stats stats) throws SQLException {
+        Connection connection = StatementCache.wrap(DriverManager.getConnection("jdbc:sqlite::memory:"), size, stats);
+        try (var st = connection.createStatement()) {
+            st.execute("CREATE TABLE t(id INTEGER PRIMARY KEY, v TEXT)");
+            st.execute("INSERT INTO t VALUES (1, 'one'), (2, 'two')");
+        }
+        return connection;
+    }
+
+    @Test
+    void hitAndMiss() throws SQLException {
+        StatementCache.Stats stats = new StatementCache.Stats();
+        try (Connection connection = newConnection(4, stats)) {
+            for (int id = 1; id <= 2; id++) {
+                try (PreparedStatement ps = connection.prepareStatement(SELECT)) {
+                    ps.setInt(1, id);
+                    ResultSet rs = ps.executeQuery();
+                    assertTrue(rs.next());
+                }
+            }
+            assertEquals(1, stats.getMisses());
+            assertEquals(1, stats.getHits());
+
+            //parameters are cleared on return
+            try (PreparedStatement ps = connection.prepareStatement(SELECT)) {
+                assertFalse(ps.executeQuery().next());
+            }
+        }
+    }
+
+    @Test
+    void inUseStatementIsNotShared() throws SQLException {
+        StatementCache.Stats stats = new StatementCache.Stats();
+        try (Connection connection = newConnection(4, stats);
+             PreparedStatement ps1 = connection.prepareStatement(SELECT);
+             PreparedStatement ps2 = connection.prepareStatement(SELECT)) {
+            assertNotSame(ps1, ps2);
+            assertEquals(2, stats.getMisses());
+        }
+    }
+
+    @Test
+    void eviction() throws SQLException {
+        StatementCache.Stats stats = new StatementCache.Stats();
+        try (Connection connection = newConnection(1, stats)) {
+            connection.prepareStatement(SELECT).close();
+            connection.prepareStatement("SELECT count(*) FROM t").close();
+            assertEquals(1, stats.getEvictions());
+            connection.prepareStatement(SELECT).close();
+            assertEquals(0, stats.getHits());
+        }
+    }
+
+    @Test
+    void closedStatement() throws SQLException {
+        try (Connection connection = newConnection(2, new StatementCache.Stats())) {
+            PreparedStatement ps = connection.prepareStatement(SELECT);
+            ps.close();
+            assertTrue(ps.isClosed());
+            assertThrowsExactly(SQLException.class, () -> ps.setInt(1, 1));
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package com.jisj.orm.repository;
 
+import com.jisj.orm.Aggregate;
 import com.jisj.orm.DAOException;
 import com.jisj.orm.DBDataSource;
 import com.jisj.orm.DBEnvironment;
+import com.jisj.orm.Page;
+import com.jisj.orm.Session;
+import com.jisj.orm.Transaction;
 import org.junit.jupiter.api.*;
 import com.jisj.orm.testdata.EmbeddedEntity;
 import com.jisj.orm.testdata.MainEntity;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.LogManager;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -101,6 +111,15 @@ public class CRUDRepositoryImplTest {
             assertEquals(3, crud.getAll().count());
         }
 
+        @Test
+        @Order(5)
+        void streamAll() {
+            try (Stream<MainEntity> stream = crud.streamAll("id>?", "id DESC", 0)) {
+                assertEquals(crud.getAll().mapToInt(MainEntity::getId).max().orElseThrow(),
+                        stream.findFirst().orElseThrow().getId());
+            }
+        }
+
 
         @Test
         @Order(6)
@@ -199,4 +218,221 @@ public class CRUDRepositoryImplTest {
         assertEquals(0, crud.query(sql, "dff").size());
     }
 
+    @Test
+    void getPage() throws DAOException {
+        for (int i = 0; i < 7; i++)
+            crud.add(MainEntity.builder().stringField("page" + (i % 3)).stringDefaultField("page" + i)
+                    .stringUniqueField("Page" + i).doubleField(0.0).build());
+        List<MainEntity> expected = crud.findAll("stringField LIKE 'page%'").stream()
+                .sorted(Comparator.comparing(MainEntity::getStringField).thenComparing(MainEntity::getId))
+                .toList();
+
+        List<MainEntity> result = new ArrayList<>();
+        Page<MainEntity> page = crud.getPage(new String[]{"stringField"}, new Object[]{"page", 0}, 3);
+        assertArrayEquals(new String[]{"stringField", "id"}, page.keyColumns());
+        result.addAll(page.content());
+        while (page.hasNext()) {
+            page = crud.getPage(page.keyColumns(), page.nextKey(), 3);
+            result.addAll(page.content());
+        }
+        assertEquals(expected, result.stream().filter(e -> e.getStringField().startsWith("page")).toList());
+
+        Page<MainEntity> byId = crud.getPage(null, 2);
+        assertEquals(2, byId.content().size());
+        assertEquals(byId.content().get(1).getId(), byId.nextKey()[0]);
+        assertTrue(crud.getPage(byId.nextKey()[0], 100).content().stream()
+                .allMatch(e -> e.getId() > byId.content().get(1).getId()));
+
+        assertThrowsExactly(IllegalArgumentException.class, () -> crud.getPage(new String[]{"noSuchColumn"}, null, 1));
+        assertThrowsExactly(IllegalArgumentException.class, () -> crud.getPage(new String[]{"stringField"}, new Object[]{"page"}, 1));
+        crud.deleteAll("stringField LIKE 'page%'");
+    }
+
+    @Test
+    void aggregates() throws DAOException {
+        for (int i = 1; i <= 4; i++)
+            crud.add(MainEntity.builder().stringField("agg" + (i % 2)).stringDefaultField("agg" + i)
+                    .stringUniqueField("Agg" + i).doubleField(i * 1.5).build());
+        try {
+            assertEquals(4, crud.count("stringField LIKE ?", "agg%"));
+            assertTrue(crud.count() >= 4);
+            assertTrue(crud.exists("UniqueField=?", "Agg3"));
+            assertFalse(crud.exists("UniqueField=?", "Agg5"));
+            assertTrue(crud.exists(null));
+            assertTrue(crud.exists(" "));
+            assertEquals(crud.count(), crud.count(null));
+            assertEquals(15.0, crud.sum("doubleField", Double.class, "stringField LIKE ?", "agg%").orElseThrow());
+            assertEquals(1.5, crud.min("doubleField", Double.class, "stringField LIKE ?", "agg%").orElseThrow());
+            assertEquals(6.0, crud.max("doubleField", Double.class, "stringField LIKE ?", "agg%").orElseThrow());
+            assertEquals(3.75, crud.avg("doubleField", "stringField LIKE ?", "agg%").orElseThrow());
+            assertTrue(crud.max("doubleField", Double.class, "stringField=?", "none").isEmpty());
+            assertEquals(Map.of("agg0", 9.0, "agg1", 6.0),
+                    crud.groupBy("stringField", String.class, Aggregate.SUM, "doubleField", Double.class, "stringField LIKE ?", "agg%"));
+            assertEquals(List.of("agg0", "agg1"), List.copyOf(crud.groupBy("stringField", String.class,
+                    Aggregate.COUNT, "*", Long.class, "stringField LIKE ?", "agg%").keySet()));
+            assertThrowsExactly(IllegalArgumentException.class, () -> crud.sum("noSuchColumn", Double.class, null));
+            assertThrowsExactly(IllegalArgumentException.class, () -> crud.sum("*", Double.class, null));
+        } finally {
+            crud.deleteAll("stringField LIKE ?", "agg%");
+        }
+    }
+
+    @Test
+    void addOrUpdateAll() throws DAOException {
+        MainEntity stored = MainEntity.builder().stringField("upsert").stringDefaultField("upsert0")
+                .stringUniqueField("Upsert0").doubleField(1.0).build();
+        crud.add(stored);
+        MainEntity changed = MainEntity.builder().id(stored.getId()).stringField("upsert").stringDefaultField("upsert0")
+                .stringUniqueField("Upsert0").doubleField(2.0).build();
+        MainEntity added = MainEntity.builder().stringField("upsert").stringDefaultField("upsert1")
+                .stringUniqueField("Upsert1").doubleField(3.0).build();
+        try {
+            crud.addOrUpdateAll(List.of(changed, added));
+            assertEquals(stored.getId(), changed.getId());
+            assertNotNull(added.getId());
+            assertEquals(2.0, crud.get(stored.getId()).getDoubleField());
+            assertEquals(added, crud.get(added.getId()));
+            assertEquals(2, crud.count("stringField=?", "upsert"));
+
+            MainEntity duplicate = MainEntity.builder().stringField("upsert").stringDefaultField("upsert2")
+                    .stringUniqueField("Upsert1").doubleField(0.0).build();
+            DAOException e = assertThrowsExactly(DAOException.class, () -> crud.addOrUpdateAll(List.of(duplicate)));
+            assertSame(duplicate, e.getCauseEntity());
+            assertNull(duplicate.getId());
+        } finally {
+            crud.deleteAll("stringField=?", "upsert");
+        }
+    }
+
+    @Test
+    void mergeAll() throws DAOException {
+        MainEntity byUnique = MainEntity.builder().stringField("mergeAll").stringDefaultField("mergeAll0")
+                .stringUniqueField("MergeAll0").doubleField(1.0).build();
+        MainEntity byConstraint = MainEntity.builder().stringField("mergeAll").stringDefaultField("mergeAll1")
+                .doubleField(2.0).build();
+        crud.add(byUnique);
+        crud.add(byConstraint);
+        MainEntity first = MainEntity.builder().stringUniqueField("MergeAll0").unAnnotatedField("first").build();
+        MainEntity second = MainEntity.builder().stringField("mergeAll").stringDefaultField("mergeAll1")
+                .unAnnotatedField("second").build();
+        MainEntity added = MainEntity.builder().stringField("mergeAll").stringDefaultField("mergeAll2")
+                .doubleField(0.0).build();
+        try {
+            crud.mergeAll(List.of(first, second, added));
+            assertEquals(byUnique.getId(), first.getId());
+            assertEquals(byConstraint.getId(), second.getId());
+            assertNotNull(added.getId());
+            assertEquals("first", crud.get(byUnique.getId()).getUnAnnotatedField());
+            assertEquals(1.0, crud.get(byUnique.getId()).getDoubleField());
+            assertEquals("second", crud.get(byConstraint.getId()).getUnAnnotatedField());
+            assertEquals(3, crud.count("stringField=?", "mergeAll"));
+        } finally {
+            crud.deleteAll("stringField=?", "mergeAll");
+        }
+    }
+
+    @Test
+    void mergeAll_sameKeyInBatch() throws DAOException {
+        MainEntity first = MainEntity.builder().stringField("mergeAllSame").stringDefaultField("mergeAllSame0")
+                .stringUniqueField("MergeAllSame").doubleField(1.0).build();
+        MainEntity other = MainEntity.builder().stringField("mergeAllSame").stringDefaultField("mergeAllSame1")
+                .doubleField(0.0).build();
+        MainEntity second = MainEntity.builder().stringUniqueField("MergeAllSame").unAnnotatedField("second").build();
+        try {
+            crud.mergeAll(List.of(first, other, second));
+            assertEquals(first.getId(), second.getId());
+            assertNotNull(other.getId());
+            MainEntity stored = crud.get(first.getId());
+            assertEquals("second", stored.getUnAnnotatedField());
+            assertEquals(1.0, stored.getDoubleField());
+            assertEquals(2, crud.count("stringField=?", "mergeAllSame"));
+        } finally {
+            crud.deleteAll("stringField=?", "mergeAllSame");
+        }
+    }
+
+    @Test
+    void batchLoader() throws DAOException {
+        List<MainEntity> added = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            added.add(MainEntity.builder().stringField("loader").stringDefaultField("loader" + i).doubleField(0.0).build());
+        crud.addAll(added);
+        try (BatchLoader<MainEntity, Integer> loader = new BatchLoader<>(crud.getDao(), Duration.ofMillis(200), 100)) {
+            crud.setBatchLoader(loader);
+            List<CompletableFuture<MainEntity>> futures = added.stream()
+                    .map(entity -> CompletableFuture.supplyAsync(() -> crud.get(entity.getId())))
+                    .toList();
+            for (int i = 0; i < added.size(); i++)
+                assertEquals(added.get(i), futures.get(i).join());
+            assertEquals(1, loader.getBatchCount());
+
+            Map<Integer, MainEntity> found = crud.getAll(List.of(added.get(0).getId(), added.get(2).getId(), -1));
+            assertEquals(Map.of(added.get(0).getId(), added.get(0), added.get(2).getId(), added.get(2)), found);
+            assertEquals(2, loader.getBatchCount());
+
+            //the transaction is seen by the reads
+            MainEntity inTransaction = db.inTransaction(() -> {
+                MainEntity entity = MainEntity.builder().stringField("loader").stringDefaultField("loader3").doubleField(0.0).build();
+                crud.add(entity);
+                assertEquals(entity, crud.getAll(List.of(entity.getId())).get(entity.getId()));
+                return crud.get(entity.getId());
+            });
+            assertNotNull(inTransaction);
+            assertEquals(2, loader.getBatchCount());
+        } finally {
+            crud.setBatchLoader(null);
+            crud.deleteAll("stringField=?", "loader");
+        }
+        assertTrue(crud.getAll(added.stream().map(MainEntity::getId).toList()).isEmpty());
+    }
+
+    @Test
+    void session() throws DAOException {
+        MainEntity stored = MainEntity.builder().stringField("session").stringDefaultField("session0").doubleField(0.0).build();
+        crud.add(stored);
+        try (Session ignored = Session.open()) {
+            MainEntity first = crud.get(stored.getId());
+            assertNotSame(stored, first);
+            assertSame(first, crud.get(stored.getId()));
+            assertSame(first, crud.findAll("stringField=?", "session").getFirst());
+            assertSame(first, crud.getAll(List.of(stored.getId())).get(stored.getId()));
+
+            first.setDoubleField(1.0);
+            MainEntity updated = MainEntity.builder().id(first.getId()).stringField("session").stringDefaultField("session0")
+                    .doubleField(2.0).build();
+            crud.update(updated);
+            assertSame(updated, crud.get(stored.getId()));
+            crud.delete(stored.getId());
+            assertNull(crud.get(stored.getId()));
+        } finally {
+            crud.deleteAll("stringField=?", "session");
+        }
+        try (Session ignored = Session.open()) {
+            assertThrowsExactly(IllegalStateException.class, Session::open);
+        }
+        assertTrue(Session.current().isEmpty());
+    }
+
+    @Test
+    void session_rollback() throws Exception {
+        MainEntity stored = MainEntity.builder().stringField("sessionRollback").stringDefaultField("rollback0").doubleField(0.0).build();
+        crud.add(stored);
+        try (Session ignored = Session.open()) {
+            MainEntity added = MainEntity.builder().stringField("sessionRollback").stringDefaultField("rollback1").doubleField(0.0).build();
+            MainEntity updated = MainEntity.builder().id(stored.getId()).stringField("sessionRollback").stringDefaultField("rollback0")
+                    .doubleField(1.0).build();
+            try (Transaction tx = db.getDataSource().beginTransaction()) {
+                crud.add(added);
+                crud.update(updated);
+                assertSame(updated, crud.get(stored.getId()));
+                tx.rollback();
+            }
+            assertNull(crud.get(added.getId()));
+            MainEntity found = crud.get(stored.getId());
+            assertNotSame(updated, found);
+            assertEquals(0.0, found.getDoubleField());
+        } finally {
+            crud.deleteAll("stringField=?", "sessionRollback");
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package com.jisj.orm.repository;
 
 import com.jisj.orm.DBDataSource;
+import com.jisj.orm.Session;
 import com.jisj.orm.testdata.NestedEntity;
 import lombok.extern.java.Log;
 import org.junit.jupiter.api.*;
@@ -197,5 +198,137 @@ class PersistRepositoryImplTest {
 
     }
 
+    @Test
+    void load_nested() {
+        NestedEntity leaf1 = NestedEntity.builder().name("Leaf1").build();
+        NestedEntity leaf2 = NestedEntity.builder().name("Leaf2").build();
+        NestedEntity branch1 = NestedEntity.builder().name("Branch1").nestedChild(List.of(leaf1, leaf2)).build();
+        NestedEntity branch2 = NestedEntity.builder().name("Branch2").nestedChild(List.of(leaf2)).build();
+        NestedEntity root = NestedEntity.builder().name("Root").nestedChild(List.of(branch1, branch2)).build();
+        perNest.persist(root);
+
+        NestedEntity loaded = perNest.load(root.getId());
+        assertEquals(List.of("Branch1", "Branch2"), loaded.getNestedChild().stream().map(NestedEntity::getName).toList());
+        assertEquals(List.of("Leaf1", "Leaf2"), loaded.getNestedChild().getFirst().getNestedChild().stream()
+                .map(NestedEntity::getName).toList());
+        NestedEntity sharedLeaf = loaded.getNestedChild().get(1).getNestedChild().getFirst();
+        assertEquals(leaf2.getId(), sharedLeaf.getId());
+        assertEquals(List.of(), sharedLeaf.getNestedChild());
+    }
+
+    @Test
+    void load_sharedAtTwoDepths() {
+        NestedEntity leaf = NestedEntity.builder().name("DagLeaf").build();
+        NestedEntity shared = NestedEntity.builder().name("DagShared").nestedChild(List.of(leaf)).build();
+        NestedEntity branch = NestedEntity.builder().name("DagBranch").nestedChild(List.of(shared)).build();
+        NestedEntity root = NestedEntity.builder().name("DagRoot").nestedChild(List.of(branch, shared)).build();
+        perNest.persist(root);
+
+        NestedEntity loaded = perNest.load(root.getId());
+        NestedEntity shallow = loaded.getNestedChild().get(1);
+        NestedEntity deep = loaded.getNestedChild().getFirst().getNestedChild().getFirst();
+        assertEquals(shared.getId(), deep.getId());
+        assertNotSame(shallow, deep);
+        assertEquals(List.of("DagLeaf"), shallow.getNestedChild().stream().map(NestedEntity::getName).toList());
+        assertEquals(List.of("DagLeaf"), deep.getNestedChild().stream().map(NestedEntity::getName).toList());
+        assertEquals(List.of(), deep.getNestedChild().getFirst().getNestedChild());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void update_diff() throws DAOException {
+        EmbeddedEntity kept = EmbeddedEntity.builder().firstField("Kept").build();
+        EmbeddedEntity removed = EmbeddedEntity.builder().firstField("Removed").build();
+        MainEntity main = MainEntity.builder()
+                .stringField("stringColumn_for_diff")
+                .stringUniqueField("Unique_diff")
+                .doubleField(0.0)
+                .embeddedList(List.of(kept, removed))
+                .embeddedListDefault(List.of())
+                .build();
+        per.save(main);
+        JoinCRUDRepository<JoinTableEntityIntID, Integer> joinCrud =
+                (JoinCRUDRepository<JoinTableEntityIntID, Integer>) db.getGlobal().getCrudRepository("join_MainTable_with_EmbeddedTable");
+        Integer keptLinkId = joinCrud.findAllEmbedded(main.getId()).getFirst().getId();
+
+        EmbeddedEntity added = EmbeddedEntity.builder().firstField("Added").build();
+        crudEmbed.add(added);
+        kept.setFirstField("Kept changed");
+        main.setEmbeddedList(List.of(kept, added));
+        per.update(main);
+
+        List<JoinTableEntityIntID> links = joinCrud.findAllEmbedded(main.getId());
+        assertEquals(List.of(kept.getId(), added.getId()), links.stream().map(JoinTableEntityIntID::getEmbeddedId).toList());
+        assertEquals(keptLinkId, links.getFirst().getId());
+        assertEquals(List.of(kept, added), per.load(main.getId()).getEmbeddedList());
+
+        //the existing links are skipped without errors
+        per.persist(main);
+        assertEquals(links.stream().map(JoinTableEntityIntID::getId).toList(),
+                joinCrud.findAllEmbedded(main.getId()).stream().map(JoinTableEntityIntID::getId).toList());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void update_linkFails() throws DAOException {
+        EmbeddedEntity old = EmbeddedEntity.builder().firstField("OldLink").build();
+        MainEntity main = MainEntity.builder()
+                .stringField("stringColumn_for_link_fails")
+                .stringUniqueField("Unique_link_fails")
+                .doubleField(0.0)
+                .embeddedList(List.of(old))
+                .embeddedListDefault(List.of())
+                .build();
+        per.save(main);
+        JoinCRUDRepository<JoinTableEntityIntID, Integer> joinCrud =
+                (JoinCRUDRepository<JoinTableEntityIntID, Integer>) db.getGlobal().getCrudRepository("join_MainTable_with_EmbeddedTable");
+
+        EmbeddedEntity missing = EmbeddedEntity.builder().id(Integer.MAX_VALUE).firstField("Missing").build();
+        main.setStringField("stringColumn_changed");
+        main.setEmbeddedList(List.of(missing));
+        assertThrows(RuntimeException.class, () -> per.update(main));
+
+        MainEntity stored = per.load(main.getId());
+        assertEquals("stringColumn_for_link_fails", stored.getStringField());
+        assertEquals(List.of(old.getId()),
+                joinCrud.findAllEmbedded(main.getId()).stream().map(JoinTableEntityIntID::getEmbeddedId).toList());
+    }
 
-}
\ No newline at end of file
+    @Test
+    void update_diff_inSession() throws DAOException {
+        EmbeddedEntity kept = EmbeddedEntity.builder().firstField("KeptInSession").build();
+        MainEntity main = MainEntity.builder()
+                .stringField("stringColumn_for_diff_session")
+                .stringUniqueField("Unique_diff_session")
+                .doubleField(0.0)
+                .embeddedList(List.of(kept))
+                .embeddedListDefault(List.of())
+                .build();
+        try (Session ignored = Session.open()) {
+            per.save(main);
+            //the changed entity is the canonical instance of the session
+            kept.setFirstField("KeptInSession changed");
+            per.update(main);
+        }
+        assertEquals("KeptInSession changed", per.load(main.getId()).getEmbeddedList().getFirst().getFirstField());
+    }
+
+    @Test
+    void load_inSession() {
+        NestedEntity shared = NestedEntity.builder().name("Shared").build();
+        NestedEntity left = NestedEntity.builder().name("Left").nestedChild(List.of(shared)).build();
+        NestedEntity right = NestedEntity.builder().name("Right").nestedChild(List.of(shared)).build();
+        perNest.persist(left);
+        perNest.persist(right);
+
+        assertNotSame(perNest.load(left.getId()), perNest.load(left.getId()));
+        try (Session ignored = Session.open()) {
+            NestedEntity loadedLeft = perNest.load(left.getId());
+            NestedEntity loadedRight = perNest.load(right.getId());
+            assertSame(loadedLeft, perNest.load(left.getId()));
+            assertSame(loadedLeft.getNestedChild().getFirst(), loadedRight.getNestedChild().getFirst());
+            assertSame(loadedLeft, perNest.getCRUD().get(left.getId()));
+        }
+        assertTrue(Session.current().isEmpty());
+    }
+}
@@ -0,0 +1,24 @@
+package com.jisj.orm.testdata;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "TypedTable")
+public class TypedEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private Integer id;
+    private int intField;
+    private long longField;
+    private Long boxedLongField;
+    private double doubleField;
+    private Float boxedFloatField;
+    private boolean booleanField;
+    private LocalDate dateField;
+}